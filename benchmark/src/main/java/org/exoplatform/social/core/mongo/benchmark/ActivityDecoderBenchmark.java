@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.activity.model.ExoSocialActivityImpl;
+import org.exoplatform.social.core.mongo.storage.ActivityDecoder;
+import org.exoplatform.social.core.mongo.storage.ActivityDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoder;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Hydrates an activity from the BSON of its document, with the default decoder of the driver
+ * and with {@link ActivityDecoder}. No container nor MongoDB is needed.
+ *
+ * Run with <code>mvn -Pbenchmark -pl benchmark exec:exec -Dbenchmark.include=ActivityDecoderBenchmark
+ * -Dbenchmark.params="-prof gc"</code>, the <code>gc.alloc.rate.norm</code> result is the number
+ * of bytes allocated per hydrated activity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ActivityDecoderBenchmark {
+
+  /** Number of likers, mentioners and commenters of the activity. */
+  @Param({"5", "50"})
+  int people;
+
+  /** . */
+  byte[] bson;
+
+  /** . */
+  final DBDecoder defaultDecoder = new DefaultDBDecoder();
+
+  /** . */
+  final DBDecoder activityDecoder = new ActivityDecoder();
+
+  @Setup
+  public void setUp() {
+    String[] ids = new String[people];
+    for (int i = 0; i < people; i++) {
+      ids[i] = new ObjectId().toString();
+    }
+    BasicDBObject entity = new BasicDBObject("_id", new ObjectId());
+    entity.append("title", "Activity title mentioning @john and @mary");
+    entity.append("titleId", null);
+    entity.append("body", "Activity body");
+    entity.append("bodyId", null);
+    entity.append("activity_type", "DEFAULT_ACTIVITY");
+    entity.append("postedTime", System.currentTimeMillis());
+    entity.append("lastUpdated", System.currentTimeMillis());
+    entity.append("poster", ids[0]);
+    entity.append("owner", "john");
+    entity.append("streamId", ids[0]);
+    entity.append("likers", ids);
+    entity.append("mentioners", ids);
+    entity.append("commenters", ids);
+    entity.append("hidable", false);
+    entity.append("lockable", false);
+    entity.append("appId", null);
+    entity.append("externalId", null);
+    entity.append("params", new BasicDBObject("link", "http://www.exoplatform.com").append("comment", "shared"));
+    entity.append("commentIds", ids);
+    entity.append("commentCount", people);
+    bson = new BasicBSONEncoder().encode(entity);
+  }
+
+  /**
+   * The previous path: a {@link BasicDBObject} is built then copied to the activity.
+   */
+  @Benchmark
+  public ExoSocialActivity defaultDecoder() {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    ActivityDocument.from(defaultDecoder.decode(bson, null)).fill(activity);
+    return activity;
+  }
+
+  @Benchmark
+  public ExoSocialActivity activityDecoder() {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    ((ActivityDocument) activityDecoder.decode(bson, null)).fill(activity);
+    return activity;
+  }
+
+}
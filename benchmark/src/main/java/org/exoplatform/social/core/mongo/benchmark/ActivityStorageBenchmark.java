@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hot paths of {@link org.exoplatform.social.core.mongo.storage.ActivityMongoStorageImpl}
+ * on the data of {@link StreamData}.
+ *
+ * Run with <code>mvn -Pbenchmark -pl benchmark exec:exec</code>, the data sizes are given with
+ * <code>-Dbenchmark.params="-p users=1000 -p connections=50"</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class ActivityStorageBenchmark {
+
+  /**
+   * The request of a benchmark thread, opened for each iteration like the request of a user.
+   */
+  @State(Scope.Thread)
+  public static class Request {
+
+    /** . */
+    final Random random = new Random(42);
+
+    @Setup(Level.Iteration)
+    public void begin(StreamData data) {
+      RequestLifeCycle.begin(data.container);
+    }
+
+    @TearDown(Level.Iteration)
+    public void end() {
+      RequestLifeCycle.end();
+    }
+
+    Identity anyIdentity(StreamData data) {
+      return data.identities.get(random.nextInt(data.identities.size()));
+    }
+
+    ExoSocialActivity anyActivity(StreamData data) {
+      return data.activities.get(random.nextInt(data.activities.size()));
+    }
+
+  }
+
+  @Benchmark
+  public ExoSocialActivity saveActivity(StreamData data, Request request) {
+    Identity poster = request.anyIdentity(data);
+    ExoSocialActivity activity = StreamData.newActivity(poster, "benchmark activity");
+    return data.activityStorage.saveActivity(poster, activity);
+  }
+
+  @Benchmark
+  public ExoSocialActivity saveComment(StreamData data, Request request) {
+    ExoSocialActivity activity = request.anyActivity(data);
+    ExoSocialActivity comment = StreamData.newActivity(request.anyIdentity(data), "benchmark comment");
+    data.activityStorage.saveComment(activity, comment);
+    return comment;
+  }
+
+  @Benchmark
+  public ExoSocialActivity likeAndUnlike(StreamData data, Request request) {
+    ExoSocialActivity activity = request.anyActivity(data);
+    String[] likers = activity.getLikeIdentityIds();
+    activity.setLikeIdentityIds(new String[] {request.anyIdentity(data).getId()});
+    data.activityStorage.updateActivity(activity);
+    activity.setLikeIdentityIds(likers);
+    data.activityStorage.updateActivity(activity);
+    return activity;
+  }
+
+  /**
+   * Updates an activity with one stream item by liker, {@link StreamData#popularLikers} of them: the
+   * stream items are updated by one multi-update on their activity id index.
+   */
+  @Benchmark
+  public ExoSocialActivity updatePopularActivity(StreamData data) {
+    ExoSocialActivity activity = data.popularActivity;
+    activity.setTitle("popular activity " + System.nanoTime());
+    data.activityStorage.updateActivity(activity);
+    return activity;
+  }
+
+  @Benchmark
+  public List<ExoSocialActivity> getActivityFeed(StreamData data, Request request) {
+    return data.activityStorage.getActivityFeed(request.anyIdentity(data), 0, 20);
+  }
+
+  @Benchmark
+  public int getNumberOfNewerOnActivityFeed(StreamData data, Request request) {
+    return data.activityStorage.getNumberOfNewerOnActivityFeed(request.anyIdentity(data), data.startTime);
+  }
+
+  @Benchmark
+  public List<ExoSocialActivity> getComments(StreamData data, Request request) {
+    return data.activityStorage.getComments(request.anyActivity(data), 0, 10);
+  }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exoplatform.component.test.KernelBootstrap;
+import org.exoplatform.container.PortalContainer;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.activity.model.ExoSocialActivityImpl;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvider;
+import org.exoplatform.social.core.identity.provider.SpaceIdentityProvider;
+import org.exoplatform.social.core.mongo.storage.ActivityMongoStorageImpl;
+import org.exoplatform.social.core.mongo.storage.MongoStorage;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
+import org.exoplatform.social.core.relationship.model.Relationship;
+import org.exoplatform.social.core.space.impl.DefaultSpaceApplicationHandler;
+import org.exoplatform.social.core.space.model.Space;
+import org.exoplatform.social.core.space.spi.SpaceService;
+import org.exoplatform.social.core.storage.api.IdentityStorage;
+import org.exoplatform.social.core.storage.api.RelationshipStorage;
+import org.exoplatform.social.core.test.AbstractCoreTest;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The data the benchmarks run on: users with connections and spaces, each user posting activities
+ * on his stream and in his space, some of them commented. The container is booted with the
+ * configuration of the tests, against the local mongod.
+ */
+@State(Scope.Benchmark)
+public class StreamData {
+
+  @Param("100")
+  public int users;
+
+  /** Connections of each user. */
+  @Param("10")
+  public int connections;
+
+  @Param("5")
+  public int spaces;
+
+  @Param("20")
+  public int activitiesPerUser;
+
+  /** An activity is commented every commentEvery activities. */
+  @Param("5")
+  public int commentEvery;
+
+  /** Users liking the popular activity, apart from the other users so that the other data stay small. */
+  @Param("2000")
+  public int popularLikers;
+
+  /** . */
+  KernelBootstrap bootstrap;
+
+  /** . */
+  PortalContainer container;
+
+  /** . */
+  ActivityMongoStorageImpl activityStorage;
+
+  /** . */
+  final List<Identity> identities = new ArrayList<Identity>();
+
+  /** The identities of the spaces, user i is member of the space i % spaces. */
+  final List<Identity> spaceIdentities = new ArrayList<Identity>();
+
+  /** . */
+  final List<ExoSocialActivity> activities = new ArrayList<ExoSocialActivity>();
+
+  /** An activity liked by popularLikers users, with one stream item by liker. */
+  ExoSocialActivity popularActivity;
+
+  /** Time before the data was created. */
+  long startTime;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    bootstrap = new KernelBootstrap(Thread.currentThread().getContextClassLoader());
+    bootstrap.addConfiguration(AbstractCoreTest.class);
+    bootstrap.boot();
+    container = bootstrap.getContainer();
+    activityStorage = getComponent(ActivityMongoStorageImpl.class);
+    startTime = System.currentTimeMillis();
+    //
+    RequestLifeCycle.begin(container);
+    try {
+      createIdentities();
+      createConnections();
+      createSpaces();
+      //the relationships and spaces were saved without the listeners
+      getComponent(MongoStorageCacheService.class).clearCaches();
+      createActivities();
+    } finally {
+      RequestLifeCycle.end();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    getComponent(MongoStorage.class).getDB().dropDatabase();
+    bootstrap.dispose();
+  }
+
+  <T> T getComponent(Class<T> type) {
+    return type.cast(container.getComponentInstanceOfType(type));
+  }
+
+  private void createIdentities() {
+    IdentityStorage identityStorage = getComponent(IdentityStorage.class);
+    for (int i = 0; i < users; i++) {
+      Identity identity = new Identity(OrganizationIdentityProvider.NAME, "bench" + i);
+      identityStorage.saveIdentity(identity);
+      identities.add(identity);
+    }
+  }
+
+  private void createConnections() {
+    RelationshipStorage relationshipStorage = getComponent(RelationshipStorage.class);
+    //each user is connected to the next ones, so everybody has the same number of connections
+    for (int i = 0; i < users; i++) {
+      for (int j = 1; j <= connections / 2; j++) {
+        Identity receiver = identities.get((i + j) % users);
+        relationshipStorage.saveRelationship(new Relationship(identities.get(i), receiver, Relationship.Type.CONFIRMED));
+      }
+    }
+  }
+
+  private void createSpaces() throws Exception {
+    SpaceService spaceService = getComponent(SpaceService.class);
+    for (int i = 0; i < spaces; i++) {
+      List<String> members = new ArrayList<String>();
+      for (int j = i; j < users; j += spaces) {
+        members.add(identities.get(j).getRemoteId());
+      }
+      Space space = new Space();
+      space.setDisplayName("bench space " + i);
+      space.setPrettyName(space.getDisplayName());
+      space.setType(DefaultSpaceApplicationHandler.NAME);
+      space.setVisibility(Space.PUBLIC);
+      space.setRegistration(Space.OPEN);
+      space.setPriority(Space.INTERMEDIATE_PRIORITY);
+      space.setGroupId("/space/benchspace" + i);
+      space.setUrl(space.getPrettyName());
+      space.setManagers(new String[] {members.get(0)});
+      space.setMembers(members.toArray(new String[members.size()]));
+      spaceService.saveSpace(space, true);
+      //
+      Identity spaceIdentity = new Identity(SpaceIdentityProvider.NAME, space.getPrettyName());
+      getComponent(IdentityStorage.class).saveIdentity(spaceIdentity);
+      spaceIdentities.add(spaceIdentity);
+    }
+  }
+
+  private void createActivities() {
+    createPopularActivity();
+    //
+    for (int n = 0; n < activitiesPerUser; n++) {
+      for (int i = 0; i < users; i++) {
+        Identity identity = identities.get(i);
+        //one activity out of four is posted in a space of the user
+        Identity owner = spaces > 0 && n % 4 == 3 ? spaceIdentities.get(i % spaces) : identity;
+        ExoSocialActivity activity = newActivity(identity, "activity " + n + " of " + identity.getRemoteId());
+        activityStorage.saveActivity(owner, activity);
+        activities.add(activity);
+        if (activities.size() % commentEvery == 0) {
+          ExoSocialActivity comment = newActivity(identities.get(activities.size() % users), "comment on " + activity.getTitle());
+          activityStorage.saveComment(activity, comment);
+        }
+      }
+    }
+  }
+
+  private void createPopularActivity() {
+    IdentityStorage identityStorage = getComponent(IdentityStorage.class);
+    String[] likers = new String[popularLikers];
+    Identity liker = null;
+    for (int i = 0; i < popularLikers; i++) {
+      liker = new Identity(OrganizationIdentityProvider.NAME, "benchliker" + i);
+      identityStorage.saveIdentity(liker);
+      likers[i] = liker.getId();
+    }
+    popularActivity = newActivity(identities.get(0), "popular activity");
+    activityStorage.saveActivity(identities.get(0), popularActivity);
+    //the creation doesn't add the stream items of the likers, the update does
+    popularActivity.setLikeIdentityIds(likers);
+    activityStorage.updateActivity(popularActivity);
+    //updatePopularActivity would measure an update of a single stream item otherwise
+    if (liker != null) {
+      List<ExoSocialActivity> feed = activityStorage.getActivityFeed(liker, 0, 1);
+      if (feed.isEmpty() || !popularActivity.getId().equals(feed.get(0).getId())) {
+        throw new IllegalStateException("The popular activity is missing from the stream of its likers");
+      }
+    }
+  }
+
+  static ExoSocialActivity newActivity(Identity poster, String title) {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle(title);
+    activity.setUserId(poster.getId());
+    return activity;
+  }
+
+}
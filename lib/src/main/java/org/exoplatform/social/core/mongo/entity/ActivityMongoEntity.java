@@ -49,5 +49,7 @@ public class ActivityMongoEntity {
   public static final PropertyLiteralExpression<String> streamId = new PropertyLiteralExpression<String>(String.class, "streamId");
   public static final PropertyLiteralExpression<String> params = new PropertyLiteralExpression<String>(String.class, "params");
   public static final PropertyLiteralExpression<String> commentIds = new PropertyLiteralExpression<String>(String.class, "commentIds");
+  public static final PropertyLiteralExpression<Integer> commentCount = new PropertyLiteralExpression<Integer>(Integer.class, "commentCount");
+  public static final PropertyLiteralExpression<String> latestComments = new PropertyLiteralExpression<String>(String.class, "latestComments");
   
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.entity;
+
+import org.exoplatform.social.core.storage.query.PropertyLiteralExpression;
+
+/**
+ * An activity in the materialized feed of a viewer, used when the feed mode is PUSH.
+ */
+public class FeedItemMongoEntity {
+
+  public static final PropertyLiteralExpression<String> id = new PropertyLiteralExpression<String>(String.class, "_id");
+  public static final PropertyLiteralExpression<String> viewerId = new PropertyLiteralExpression<String>(String.class, "viewerId");
+  public static final PropertyLiteralExpression<String> activityId = new PropertyLiteralExpression<String>(String.class, "activityId");
+  public static final PropertyLiteralExpression<Long> time = new PropertyLiteralExpression<Long>(Long.class, "time");
+  public static final PropertyLiteralExpression<Boolean> hiable = new PropertyLiteralExpression<Boolean>(Boolean.class, "hiable");
+  //start time of the last rebuild which found the activity in the feed
+  public static final PropertyLiteralExpression<Long> rebuiltAt = new PropertyLiteralExpression<Long>(Long.class, "rebuiltAt");
+  //feed state of a viewer, the hash of the audience the feed was built with
+  public static final PropertyLiteralExpression<Integer> audience = new PropertyLiteralExpression<Integer>(Integer.class, "audience");
+  //feed hub, a poster or a space whose activities are pulled at read time
+  public static final PropertyLiteralExpression<String> providerId = new PropertyLiteralExpression<String>(String.class, "providerId");
+  public static final PropertyLiteralExpression<String> remoteId = new PropertyLiteralExpression<String>(String.class, "remoteId");
+  
+}
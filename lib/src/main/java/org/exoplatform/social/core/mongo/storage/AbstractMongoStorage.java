@@ -33,6 +33,27 @@ public abstract class AbstractMongoStorage extends AbstractStorage {
     return this.storage;
   }
   
+  /**
+   * Gets the collection already resolved with the specified name
+   * 
+   * @param name the name of collection.
+   * @return the collection or <code>null</code> if it has not been resolved yet
+   */
+  protected DBCollection getRegisteredCollection(String name) {
+    return storage.getRegisteredCollection(name);
+  }
+  
+  /**
+   * Registers the resolved collection to be reused by next calls
+   * 
+   * @param name the name of collection.
+   * @param collection the collection
+   * @return the registered collection
+   */
+  protected DBCollection registerCollection(String name, DBCollection collection) {
+    return storage.registerCollection(name, collection);
+  }
+  
   /**
    * Gets list of collections on specified DB
    * @return
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.exoplatform.social.core.mongo.entity.ActivityMongoEntity;
+import org.exoplatform.social.core.mongo.entity.CommentMongoEntity;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Decodes the activity and comment documents into {@link ActivityDocument}, reading the BSON
+ * fields straight into the document without building a {@link com.mongodb.BasicDBObject} first.
+ *
+ * The documents holding a field of an unexpected type are decoded by the default decoder and
+ * copied, as are the error documents of the server.
+ */
+public class ActivityDecoder extends DefaultDBDecoder {
+
+  /** Set on the cursors reading activities or comments to hydrate them. */
+  public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+    @Override
+    public DBDecoder create() {
+      return new ActivityDecoder();
+    }
+  };
+
+  /** . */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** . */
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /** . */
+  private static final byte DOUBLE = 0x01;
+
+  /** . */
+  private static final byte STRING = 0x02;
+
+  /** . */
+  private static final byte DOCUMENT = 0x03;
+
+  /** . */
+  private static final byte ARRAY = 0x04;
+
+  /** . */
+  private static final byte BINARY = 0x05;
+
+  /** . */
+  private static final byte UNDEFINED = 0x06;
+
+  /** . */
+  private static final byte OBJECT_ID = 0x07;
+
+  /** . */
+  private static final byte BOOLEAN = 0x08;
+
+  /** . */
+  private static final byte DATE = 0x09;
+
+  /** . */
+  private static final byte NULL = 0x0A;
+
+  /** . */
+  private static final byte REGEX = 0x0B;
+
+  /** . */
+  private static final byte CODE = 0x0D;
+
+  /** . */
+  private static final byte SYMBOL = 0x0E;
+
+  /** . */
+  private static final byte CODE_W_SCOPE = 0x0F;
+
+  /** . */
+  private static final byte INT32 = 0x10;
+
+  /** . */
+  private static final byte TIMESTAMP = 0x11;
+
+  /** . */
+  private static final byte INT64 = 0x12;
+
+  /** . */
+  private static final byte MIN_KEY = (byte) 0xFF;
+
+  /** . */
+  private static final byte MAX_KEY = 0x7F;
+
+  /**
+   * The fields copied to the activities, matched on the bytes of their name so that the names
+   * of the decoded documents are never turned into strings.
+   */
+  private enum Field {
+    ID(ActivityMongoEntity.id.getName()),
+    TITLE(ActivityMongoEntity.title.getName()),
+    TITLE_ID(ActivityMongoEntity.titleId.getName()),
+    BODY(ActivityMongoEntity.body.getName()),
+    BODY_ID(ActivityMongoEntity.bodyId.getName()),
+    POSTER(ActivityMongoEntity.poster.getName()),
+    OWNER(ActivityMongoEntity.owner.getName()),
+    PERMA_LINK(ActivityMongoEntity.permaLink.getName()),
+    APP_ID(ActivityMongoEntity.appId.getName()),
+    EXTERNAL_ID(ActivityMongoEntity.externalId.getName()),
+    TYPE(ActivityMongoEntity.activity_type.getName()),
+    STREAM_ID(ActivityMongoEntity.streamId.getName()),
+    ACTIVITY_ID(CommentMongoEntity.activityId.getName()),
+    LIKERS(ActivityMongoEntity.likers.getName()),
+    MENTIONERS(ActivityMongoEntity.mentioners.getName()),
+    COMMENTERS(ActivityMongoEntity.commenters.getName()),
+    COMMENT_IDS(ActivityMongoEntity.commentIds.getName()),
+    PARAMS(ActivityMongoEntity.params.getName()),
+    LATEST_COMMENTS(ActivityMongoEntity.latestComments.getName()),
+    HIDABLE(ActivityMongoEntity.hidable.getName()),
+    LOCKABLE(ActivityMongoEntity.lockable.getName()),
+    POSTED_TIME(ActivityMongoEntity.postedTime.getName()),
+    LAST_UPDATED(ActivityMongoEntity.lastUpdated.getName());
+
+    /** The fields, {@link #values()} copies them on each call. */
+    private static final Field[] ALL = values();
+
+    /** . */
+    private final byte[] name;
+
+    private Field(String name) {
+      this.name = name.getBytes(UTF8);
+    }
+
+    /**
+     * Finds the field whose name is the C string starting at the specified position.
+     *
+     * @return the field or <code>null</code> if it is not copied to the activities
+     */
+    static Field find(byte[] b, int start, int end) {
+      int length = end - start;
+      for (Field field : ALL) {
+        byte[] name = field.name;
+        if (name.length != length) {
+          continue;
+        }
+        int i = 0;
+        while (i < length && name[i] == b[start + i]) {
+          i++;
+        }
+        if (i == length) {
+          return field;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Thrown when a document must be decoded by the default decoder, it has no stack trace. */
+  private static final UnsupportedDocument UNSUPPORTED = new UnsupportedDocument();
+
+  @Override
+  public DBObject decode(byte[] b, DBCollection collection) {
+    try {
+      return read(b, 0);
+    } catch (UnsupportedDocument e) {
+      DBObject entity = super.decode(b, collection);
+      return entity.containsField("$err") ? entity : ActivityDocument.from(entity);
+    }
+  }
+
+  @Override
+  public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+    byte[] size = new byte[4];
+    readFully(in, size, 0, 4);
+    byte[] b = new byte[readInt(size, 0)];
+    System.arraycopy(size, 0, b, 0, 4);
+    readFully(in, b, 4, b.length - 4);
+    return decode(b, collection);
+  }
+
+  private static void readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+    while (length > 0) {
+      int read = in.read(b, offset, length);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+
+  /**
+   * Reads an activity or a comment document.
+   *
+   * @param b the BSON
+   * @param start the position of the document in the BSON
+   * @return the document
+   * @throws UnsupportedDocument if the document must be decoded by the default decoder
+   */
+  static ActivityDocument read(byte[] b, int start) {
+    ActivityDocument document = new ActivityDocument();
+    int end = start + readInt(b, start) - 1;
+    int pos = start + 4;
+    while (pos < end) {
+      byte type = b[pos++];
+      int nameEnd = indexOfZero(b, pos);
+      if (b[pos] == '$') {
+        throw UNSUPPORTED;
+      }
+      Field field = Field.find(b, pos, nameEnd);
+      pos = nameEnd + 1;
+      if (field == null) {
+        pos = skip(b, pos, type);
+        continue;
+      }
+      switch (field) {
+        case ID:
+          document.id = type == OBJECT_ID ? readObjectId(b, pos) : readString(b, pos, type);
+          break;
+        case TITLE:
+          document.title = readString(b, pos, type);
+          break;
+        case TITLE_ID:
+          document.titleId = readString(b, pos, type);
+          break;
+        case BODY:
+          document.body = readString(b, pos, type);
+          break;
+        case BODY_ID:
+          document.bodyId = readString(b, pos, type);
+          break;
+        case POSTER:
+          document.poster = readString(b, pos, type);
+          break;
+        case OWNER:
+          document.owner = readString(b, pos, type);
+          break;
+        case PERMA_LINK:
+          document.permaLink = readString(b, pos, type);
+          break;
+        case APP_ID:
+          document.appId = readString(b, pos, type);
+          break;
+        case EXTERNAL_ID:
+          document.externalId = readString(b, pos, type);
+          break;
+        case TYPE:
+          document.type = readString(b, pos, type);
+          break;
+        case STREAM_ID:
+          document.streamId = readString(b, pos, type);
+          break;
+        case ACTIVITY_ID:
+          document.activityId = readString(b, pos, type);
+          break;
+        case LIKERS:
+          document.likers = readStrings(b, pos, type);
+          break;
+        case MENTIONERS:
+          document.mentioners = readStrings(b, pos, type);
+          break;
+        case COMMENTERS:
+          document.commenters = readStrings(b, pos, type);
+          break;
+        case COMMENT_IDS:
+          document.commentIds = readStrings(b, pos, type);
+          break;
+        case PARAMS:
+          document.params = readParams(b, pos, type);
+          break;
+        case LATEST_COMMENTS:
+          document.latestComments = readComments(b, pos, type);
+          break;
+        case HIDABLE:
+          document.hidden = readBoolean(b, pos, type);
+          break;
+        case LOCKABLE:
+          document.locked = readBoolean(b, pos, type);
+          break;
+        case POSTED_TIME:
+          document.postedTime = readLong(b, pos, type);
+          break;
+        case LAST_UPDATED:
+          document.lastUpdated = readLong(b, pos, type);
+          break;
+        default:
+          break;
+      }
+      pos = skip(b, pos, type);
+    }
+    return document;
+  }
+
+  private static String readString(byte[] b, int pos, byte type) {
+    if (type == NULL) {
+      return null;
+    }
+    if (type != STRING) {
+      throw UNSUPPORTED;
+    }
+    //the length counts the terminal zero
+    return new String(b, pos + 4, readInt(b, pos) - 1, UTF8);
+  }
+
+  private static String readObjectId(byte[] b, int pos) {
+    char[] hex = new char[24];
+    for (int i = 0; i < 12; i++) {
+      hex[2 * i] = HEX[(b[pos + i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX[b[pos + i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  private static String[] readStrings(byte[] b, int pos, byte type) {
+    if (type == NULL) {
+      return null;
+    }
+    if (type != ARRAY) {
+      throw UNSUPPORTED;
+    }
+    int end = pos + readInt(b, pos) - 1;
+    //counts the elements first to allocate the array once
+    int count = 0;
+    int i = pos + 4;
+    while (i < end) {
+      byte elementType = b[i++];
+      if (elementType != STRING) {
+        throw UNSUPPORTED;
+      }
+      i = skip(b, indexOfZero(b, i) + 1, elementType);
+      count++;
+    }
+    String[] strings = new String[count];
+    i = pos + 4;
+    for (int n = 0; n < count; n++) {
+      i = indexOfZero(b, i + 1) + 1;
+      strings[n] = readString(b, i, STRING);
+      i = skip(b, i, STRING);
+    }
+    return strings;
+  }
+
+  private static ActivityDocument[] readComments(byte[] b, int pos, byte type) {
+    if (type == NULL) {
+      return null;
+    }
+    if (type != ARRAY) {
+      throw UNSUPPORTED;
+    }
+    int end = pos + readInt(b, pos) - 1;
+    int count = 0;
+    int i = pos + 4;
+    while (i < end) {
+      byte elementType = b[i++];
+      if (elementType != DOCUMENT) {
+        throw UNSUPPORTED;
+      }
+      i = skip(b, indexOfZero(b, i) + 1, elementType);
+      count++;
+    }
+    ActivityDocument[] comments = new ActivityDocument[count];
+    i = pos + 4;
+    for (int n = 0; n < count; n++) {
+      i = indexOfZero(b, i + 1) + 1;
+      comments[n] = read(b, i);
+      i = skip(b, i, DOCUMENT);
+    }
+    return comments;
+  }
+
+  private static Map<String, String> readParams(byte[] b, int pos, byte type) {
+    if (type == NULL) {
+      return null;
+    }
+    if (type != DOCUMENT) {
+      throw UNSUPPORTED;
+    }
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    int end = pos + readInt(b, pos) - 1;
+    int i = pos + 4;
+    while (i < end) {
+      byte valueType = b[i++];
+      int nameEnd = indexOfZero(b, i);
+      String name = new String(b, i, nameEnd - i, UTF8);
+      i = nameEnd + 1;
+      params.put(name, readString(b, i, valueType));
+      i = skip(b, i, valueType);
+    }
+    return params;
+  }
+
+  private static boolean readBoolean(byte[] b, int pos, byte type) {
+    if (type == NULL) {
+      return false;
+    }
+    if (type != BOOLEAN) {
+      throw UNSUPPORTED;
+    }
+    return b[pos] != 0;
+  }
+
+  private static long readLong(byte[] b, int pos, byte type) {
+    switch (type) {
+      case NULL:
+        return 0;
+      case INT32:
+        return readInt(b, pos);
+      case INT64:
+      case DATE:
+        return (readInt(b, pos) & 0xFFFFFFFFL) | ((long) readInt(b, pos + 4) << 32);
+      case DOUBLE:
+        return (long) Double.longBitsToDouble((readInt(b, pos) & 0xFFFFFFFFL) | ((long) readInt(b, pos + 4) << 32));
+      default:
+        throw UNSUPPORTED;
+    }
+  }
+
+  /**
+   * Skips a value.
+   *
+   * @return the position following the value
+   */
+  private static int skip(byte[] b, int pos, byte type) {
+    switch (type) {
+      case NULL:
+      case UNDEFINED:
+      case MIN_KEY:
+      case MAX_KEY:
+        return pos;
+      case BOOLEAN:
+        return pos + 1;
+      case INT32:
+        return pos + 4;
+      case DOUBLE:
+      case DATE:
+      case INT64:
+      case TIMESTAMP:
+        return pos + 8;
+      case OBJECT_ID:
+        return pos + 12;
+      case STRING:
+      case CODE:
+      case SYMBOL:
+        return pos + 4 + readInt(b, pos);
+      case DOCUMENT:
+      case ARRAY:
+      case CODE_W_SCOPE:
+        return pos + readInt(b, pos);
+      case BINARY:
+        return pos + 5 + readInt(b, pos);
+      case REGEX:
+        return indexOfZero(b, indexOfZero(b, pos) + 1) + 1;
+      default:
+        throw UNSUPPORTED;
+    }
+  }
+
+  private static int indexOfZero(byte[] b, int pos) {
+    while (b[pos] != 0) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int readInt(byte[] b, int pos) {
+    return (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8) | ((b[pos + 2] & 0xFF) << 16) | ((b[pos + 3] & 0xFF) << 24);
+  }
+
+  /**
+   * Raised to fall back on the default decoder.
+   */
+  static final class UnsupportedDocument extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+
+  }
+
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.mongo.entity.ActivityMongoEntity;
+import org.exoplatform.social.core.mongo.entity.CommentMongoEntity;
+
+import com.mongodb.DBObject;
+
+/**
+ * The fields of an activity or a comment document which are copied to an {@link ExoSocialActivity}.
+ *
+ * It is filled by {@link ActivityDecoder} straight from the BSON of the document, without the maps
+ * and lists of a {@link com.mongodb.BasicDBObject}. A document is read only: it may be shared by the
+ * activity cache, each read fills its own activity from it.
+ */
+public final class ActivityDocument implements DBObject, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** The names of the fields in the document, in the order of {@link #toMap()}. */
+  private static final String[] FIELD_NAMES = {
+    ActivityMongoEntity.id.getName(), ActivityMongoEntity.title.getName(), ActivityMongoEntity.titleId.getName(),
+    ActivityMongoEntity.body.getName(), ActivityMongoEntity.bodyId.getName(), ActivityMongoEntity.poster.getName(),
+    ActivityMongoEntity.owner.getName(), ActivityMongoEntity.permaLink.getName(), ActivityMongoEntity.appId.getName(),
+    ActivityMongoEntity.externalId.getName(), ActivityMongoEntity.activity_type.getName(), ActivityMongoEntity.streamId.getName(),
+    CommentMongoEntity.activityId.getName(), ActivityMongoEntity.likers.getName(), ActivityMongoEntity.mentioners.getName(),
+    ActivityMongoEntity.commenters.getName(), ActivityMongoEntity.commentIds.getName(), ActivityMongoEntity.params.getName(),
+    ActivityMongoEntity.latestComments.getName(), ActivityMongoEntity.hidable.getName(), ActivityMongoEntity.lockable.getName(),
+    ActivityMongoEntity.postedTime.getName(), ActivityMongoEntity.lastUpdated.getName()
+  };
+
+  /** . */
+  String id;
+
+  /** . */
+  String title;
+
+  /** . */
+  String titleId;
+
+  /** . */
+  String body;
+
+  /** . */
+  String bodyId;
+
+  /** . */
+  String poster;
+
+  /** . */
+  String owner;
+
+  /** . */
+  String permaLink;
+
+  /** . */
+  String appId;
+
+  /** . */
+  String externalId;
+
+  /** . */
+  String type;
+
+  /** . */
+  String streamId;
+
+  /** The id of the activity of a comment. */
+  String activityId;
+
+  /** . */
+  String[] likers;
+
+  /** . */
+  String[] mentioners;
+
+  /** . */
+  String[] commenters;
+
+  /** . */
+  String[] commentIds;
+
+  /** . */
+  Map<String, String> params;
+
+  /** The latest comments embedded in an activity, oldest first. */
+  ActivityDocument[] latestComments;
+
+  /** . */
+  boolean hidden;
+
+  /** . */
+  boolean locked;
+
+  /** . */
+  long postedTime;
+
+  /** . */
+  long lastUpdated;
+
+  /** . */
+  private boolean partial;
+
+  ActivityDocument() {
+  }
+
+  /**
+   * Copies the fields of a document decoded by the default decoder.
+   *
+   * @param entity the document
+   * @return the activity document
+   */
+  @SuppressWarnings("unchecked")
+  public static ActivityDocument from(DBObject entity) {
+    ActivityDocument document = new ActivityDocument();
+    document.id = getString(entity, ActivityMongoEntity.id.getName());
+    document.title = getString(entity, ActivityMongoEntity.title.getName());
+    document.titleId = getString(entity, ActivityMongoEntity.titleId.getName());
+    document.body = getString(entity, ActivityMongoEntity.body.getName());
+    document.bodyId = getString(entity, ActivityMongoEntity.bodyId.getName());
+    document.poster = getString(entity, ActivityMongoEntity.poster.getName());
+    document.owner = getString(entity, ActivityMongoEntity.owner.getName());
+    document.permaLink = getString(entity, ActivityMongoEntity.permaLink.getName());
+    document.appId = getString(entity, ActivityMongoEntity.appId.getName());
+    document.externalId = getString(entity, ActivityMongoEntity.externalId.getName());
+    document.type = getString(entity, ActivityMongoEntity.activity_type.getName());
+    document.streamId = getString(entity, ActivityMongoEntity.streamId.getName());
+    document.activityId = getString(entity, CommentMongoEntity.activityId.getName());
+    document.likers = getStrings(entity, ActivityMongoEntity.likers.getName());
+    document.mentioners = getStrings(entity, ActivityMongoEntity.mentioners.getName());
+    document.commenters = getStrings(entity, ActivityMongoEntity.commenters.getName());
+    document.commentIds = getStrings(entity, ActivityMongoEntity.commentIds.getName());
+    List<?> latestComments = (List<?>) entity.get(ActivityMongoEntity.latestComments.getName());
+    if (latestComments != null) {
+      document.latestComments = new ActivityDocument[latestComments.size()];
+      for (int i = 0; i < document.latestComments.length; i++) {
+        document.latestComments[i] = from((DBObject) latestComments.get(i));
+      }
+    }
+    Object params = entity.get(ActivityMongoEntity.params.getName());
+    if (params instanceof BSONObject) {
+      document.params = new LinkedHashMap<String, String>(((BSONObject) params).toMap());
+    } else if (params instanceof Map) {
+      document.params = new LinkedHashMap<String, String>((Map<String, String>) params);
+    }
+    document.hidden = getBoolean(entity, ActivityMongoEntity.hidable.getName());
+    document.locked = getBoolean(entity, ActivityMongoEntity.lockable.getName());
+    document.postedTime = getLong(entity, ActivityMongoEntity.postedTime.getName());
+    document.lastUpdated = getLong(entity, ActivityMongoEntity.lastUpdated.getName());
+    return document;
+  }
+
+  private static String getString(DBObject entity, String name) {
+    Object value = entity.get(name);
+    return value != null ? value.toString() : null;
+  }
+
+  private static String[] getStrings(DBObject entity, String name) {
+    List<?> list = (List<?>) entity.get(name);
+    return list != null ? list.toArray(new String[list.size()]) : null;
+  }
+
+  private static boolean getBoolean(DBObject entity, String name) {
+    Object value = entity.get(name);
+    return value != null && (Boolean) value;
+  }
+
+  private static long getLong(DBObject entity, String name) {
+    Object value = entity.get(name);
+    return value != null ? ((Number) value).longValue() : 0;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getStreamId() {
+    return streamId;
+  }
+
+  /**
+   * Gets the id of the activity of a comment.
+   * @return
+   */
+  public String getActivityId() {
+    return activityId;
+  }
+
+  /**
+   * Gets the number of comments of an activity.
+   * @return
+   */
+  public int getNumberOfComments() {
+    return commentIds != null ? commentIds.length : 0;
+  }
+
+  /**
+   * Gets the latest comments embedded in an activity, oldest first.
+   * 
+   * @return the comments, <code>null</code> if the activity was saved without them
+   */
+  public ActivityDocument[] getLatestComments() {
+    return latestComments;
+  }
+
+  /**
+   * Tells if the embedded latest comments are the last comments of the activity. They are missing
+   * or incomplete for the activities commented before they were embedded.
+   * 
+   * @param size the number of embedded comments
+   * @return true if the embedded comments can be read instead of the comment collection
+   */
+  public boolean hasCommentPreview(int size) {
+    if (latestComments == null) {
+      return false;
+    }
+    int total = getNumberOfComments();
+    if (latestComments.length != Math.min(total, size)) {
+      return false;
+    }
+    int first = total - latestComments.length;
+    for (int i = 0; i < latestComments.length; i++) {
+      if (!commentIds[first + i].equals(latestComments[i].id)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Fills an activity with the fields of this document, the arrays and the params are copied
+   * so that the activity can be changed.
+   *
+   * @param activity the activity
+   */
+  public void fill(ExoSocialActivity activity) {
+    activity.setId(id);
+    activity.setTitle(title);
+    activity.setTitleId(titleId);
+    activity.setBody(body);
+    activity.setBodyId(bodyId);
+
+    activity.setPosterId(poster);
+    activity.setUserId(poster);
+    activity.setStreamOwner(owner);
+    activity.setPermanLink(permaLink);
+    activity.setLikeIdentityIds(copy(likers));
+    activity.setMentionedIds(copy(mentioners));
+    activity.setCommentedIds(copy(commenters));
+
+    activity.isHidden(hidden);
+    activity.isLocked(locked);
+
+    activity.setPostedTime(postedTime);
+    activity.setUpdated(lastUpdated);
+
+    activity.setAppId(appId);
+    activity.setExternalId(externalId);
+    activity.setType(type);
+    activity.setTemplateParams(params != null ? new LinkedHashMap<String, String>(params) : null);
+
+    if (commentIds != null) {
+      activity.setReplyToId(commentIds.clone());
+    }
+  }
+
+  private static String[] copy(String[] values) {
+    return values != null ? values.clone() : new String[0];
+  }
+
+  /**
+   * Gets the fields as a map, for logs and for the code expecting a {@link DBObject}.
+   */
+  @SuppressWarnings("rawtypes")
+  public Map toMap() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for (String name : FIELD_NAMES) {
+      Object value = get(name);
+      if (value != null) {
+        map.put(name, value);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Gets a field by its name in the document, straight from this document.
+   */
+  public Object get(String key) {
+    if (ActivityMongoEntity.id.getName().equals(key)) {
+      return id;
+    } else if (ActivityMongoEntity.title.getName().equals(key)) {
+      return title;
+    } else if (ActivityMongoEntity.titleId.getName().equals(key)) {
+      return titleId;
+    } else if (ActivityMongoEntity.body.getName().equals(key)) {
+      return body;
+    } else if (ActivityMongoEntity.bodyId.getName().equals(key)) {
+      return bodyId;
+    } else if (ActivityMongoEntity.poster.getName().equals(key)) {
+      return poster;
+    } else if (ActivityMongoEntity.owner.getName().equals(key)) {
+      return owner;
+    } else if (ActivityMongoEntity.permaLink.getName().equals(key)) {
+      return permaLink;
+    } else if (ActivityMongoEntity.appId.getName().equals(key)) {
+      return appId;
+    } else if (ActivityMongoEntity.externalId.getName().equals(key)) {
+      return externalId;
+    } else if (ActivityMongoEntity.activity_type.getName().equals(key)) {
+      return type;
+    } else if (ActivityMongoEntity.streamId.getName().equals(key)) {
+      return streamId;
+    } else if (CommentMongoEntity.activityId.getName().equals(key)) {
+      return activityId;
+    } else if (ActivityMongoEntity.likers.getName().equals(key)) {
+      return likers;
+    } else if (ActivityMongoEntity.mentioners.getName().equals(key)) {
+      return mentioners;
+    } else if (ActivityMongoEntity.commenters.getName().equals(key)) {
+      return commenters;
+    } else if (ActivityMongoEntity.commentIds.getName().equals(key)) {
+      return commentIds;
+    } else if (ActivityMongoEntity.params.getName().equals(key)) {
+      return params;
+    } else if (ActivityMongoEntity.latestComments.getName().equals(key)) {
+      return latestComments;
+    } else if (ActivityMongoEntity.hidable.getName().equals(key)) {
+      return hidden;
+    } else if (ActivityMongoEntity.lockable.getName().equals(key)) {
+      return locked;
+    } else if (ActivityMongoEntity.postedTime.getName().equals(key)) {
+      return postedTime;
+    } else if (ActivityMongoEntity.lastUpdated.getName().equals(key)) {
+      return lastUpdated;
+    }
+    return null;
+  }
+
+  public boolean containsField(String s) {
+    return get(s) != null;
+  }
+
+  @Deprecated
+  public boolean containsKey(String s) {
+    return containsField(s);
+  }
+
+  public Set<String> keySet() {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (String name : FIELD_NAMES) {
+      if (get(name) != null) {
+        keys.add(name);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * The document is read only, it may be shared by the activity cache.
+   */
+  public Object put(String key, Object v) {
+    throw new UnsupportedOperationException("An activity document is read only");
+  }
+
+  public void putAll(BSONObject o) {
+    throw new UnsupportedOperationException("An activity document is read only");
+  }
+
+  @SuppressWarnings("rawtypes")
+  public void putAll(Map m) {
+    throw new UnsupportedOperationException("An activity document is read only");
+  }
+
+  public Object removeField(String key) {
+    throw new UnsupportedOperationException("An activity document is read only");
+  }
+
+  public void markAsPartialObject() {
+    partial = true;
+  }
+
+  public boolean isPartialObject() {
+    return partial;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+
+}
@@ -2,16 +2,21 @@ package org.exoplatform.social.core.mongo.storage;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,6 +28,7 @@ import org.bson.types.BasicBSONList;
 import org.bson.types.ObjectId;
 import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.PortalContainer;
+import org.exoplatform.services.cache.ExoCache;
 import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.services.jcr.config.RepositoryConfigurationException;
 import org.exoplatform.services.log.ExoLogger;
@@ -39,8 +45,11 @@ import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvide
 import org.exoplatform.social.core.identity.provider.SpaceIdentityProvider;
 import org.exoplatform.social.core.mongo.entity.ActivityMongoEntity;
 import org.exoplatform.social.core.mongo.entity.CommentMongoEntity;
+import org.exoplatform.social.core.mongo.entity.FeedItemMongoEntity;
 import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
 import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity.ViewerType;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
+import org.exoplatform.social.core.mongo.storage.cache.StreamAudience;
 import org.exoplatform.social.core.relationship.model.Relationship;
 import org.exoplatform.social.core.relationship.model.Relationship.Type;
 import org.exoplatform.social.core.space.model.Space;
@@ -55,11 +64,17 @@ import org.exoplatform.social.core.storage.impl.ActivityBuilderWhere;
 import org.exoplatform.social.core.storage.impl.ActivityStorageImpl;
 import org.exoplatform.social.core.storage.impl.StorageUtils;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.WriteResult;
 
 public class ActivityMongoStorageImpl extends ActivityStorageImpl {
@@ -73,24 +88,138 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     
     ACTIVITY_COLLECTION("activity") {
       @Override
-      protected void ensureIndex(AbstractMongoStorage mongoStorage, DBCollection got) {
-        got.ensureIndex(new BasicDBObject(ActivityMongoEntity.postedTime.getName(), -1).append(StreamItemMongoEntity.activityId.getName(), 1)
-                        .append(ActivityMongoEntity.poster.getName(), 1));
+      protected MongoIndex[] indexes() {
+        return new MongoIndex[] {
+          //activities by time, with the poster
+          MongoIndex.index().desc(ActivityMongoEntity.postedTime.getName()).asc(StreamItemMongoEntity.activityId.getName())
+                    .asc(ActivityMongoEntity.poster.getName())
+        };
       }
     },
     COMMENT_COLLECTION("comment") {
       @Override
-      protected void ensureIndex(AbstractMongoStorage mongoStorage, DBCollection got) {
-        got.ensureIndex(new BasicDBObject(CommentMongoEntity.postedTime.getName(), -1).append(StreamItemMongoEntity.activityId.getName(), 1));
+      protected MongoIndex[] indexes() {
+        return new MongoIndex[] {
+          MongoIndex.index().desc(CommentMongoEntity.postedTime.getName()).asc(StreamItemMongoEntity.activityId.getName()),
+          //comments of an activity, also used to delete them with the activity
+          MongoIndex.index().asc(CommentMongoEntity.activityId.getName()).desc(CommentMongoEntity.postedTime.getName())
+        };
       }
     },
     STREAM_ITEM_COLLECTION("streamItem") {
       @Override
-      protected void ensureIndex(AbstractMongoStorage mongoStorage, DBCollection got) {
-        got.ensureIndex(new BasicDBObject(StreamItemMongoEntity.time.getName(), -1).append(StreamItemMongoEntity.viewerId.getName(), 1));
+      protected MongoIndex[] indexes() {
+        //the streams never show the hidden activities
+        BasicDBObject notHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
+        //the stream indexes end with the activity id, the only field read with the time, so the scans are covered
+        String activityId = StreamItemMongoEntity.activityId.getName();
+        return new MongoIndex[] {
+          MongoIndex.index().desc(StreamItemMongoEntity.time.getName()).asc(StreamItemMongoEntity.viewerId.getName()),
+          byViewer(),
+          //user stream and feed by viewer
+          MongoIndex.index().asc(StreamItemMongoEntity.viewerId.getName()).desc(StreamItemMongoEntity.time.getName())
+                    .asc(activityId).partial(notHidden),
+          //space streams, feed by spaces
+          MongoIndex.index().asc(StreamItemMongoEntity.owner.getName()).desc(StreamItemMongoEntity.time.getName())
+                    .asc(activityId).partial(notHidden),
+          //user stream and feed by poster
+          MongoIndex.index().asc(StreamItemMongoEntity.poster.getName()).desc(StreamItemMongoEntity.time.getName())
+                    .asc(activityId).partial(notHidden),
+          //connections stream, feed by relationships
+          MongoIndex.index().asc(StreamItemMongoEntity.poster.getName()).asc(StreamItemMongoEntity.owner.getName())
+                    .desc(StreamItemMongoEntity.time.getName()).asc(activityId).partial(notHidden)
+        };
+      }
+      
+      /**
+       * One stream item by viewer of an activity, the upserts, updates and removals of an activity rely on it.
+       */
+      private MongoIndex byViewer() {
+        return MongoIndex.index().asc(StreamItemMongoEntity.activityId.getName()).asc(StreamItemMongoEntity.viewerId.getName()).unique();
+      }
+      
+      /**
+       * The stream items inserted by the earlier versions may be duplicated by viewer, they are merged
+       * once by the migration before the unique index is built. While the migration is not done, by this node
+       * or another one, the unique index is left for the next start.
+       * 
+       * The times of the stream items of each activity are aligned once by another migration.
+       */
+      @Override
+      protected void ensureIndex(MongoStorage mongoStorage, String repositoryName, final DBCollection got) {
+        DBCollection migrationCol = mongoStorage.getDB().getCollection(MIGRATION_COLLECTION.collectionName(repositoryName));
+        boolean merged = byViewer().exists(got) || MongoMigration.runOnce(migrationCol, MERGE_DUPLICATES_MIGRATION, new Runnable() {
+          public void run() {
+            int removed = StreamItemDuplicates.merge(got);
+            if (removed > 0) {
+              LOG.info(String.format("Merged %d duplicated stream items of %s", removed, got.getName()));
+            }
+          }
+        });
+        if (merged) {
+          super.ensureIndex(mongoStorage, repositoryName, got);
+        } else {
+          LOG.warn(String.format("The duplicated stream items of %s are not merged yet, its unique index is created on next start", got.getName()));
+          List<MongoIndex> indexes = new ArrayList<MongoIndex>();
+          for (MongoIndex index : indexes()) {
+            if (! index.getName().equals(byViewer().getName())) {
+              indexes.add(index);
+            }
+          }
+          ensureIndex(mongoStorage, got, indexes.toArray(new MongoIndex[indexes.size()]));
+        }
+        //
+        MongoMigration.runOnce(migrationCol, ALIGN_TIMES_MIGRATION, new Runnable() {
+          public void run() {
+            int aligned = StreamItemTimes.align(got);
+            if (aligned > 0) {
+              LOG.info(String.format("Aligned the times of the stream items of %d activities of %s", aligned, got.getName()));
+            }
+          }
+        });
+      }
+    },
+    FEED_COLLECTION("feed") {
+      @Override
+      protected MongoIndex[] indexes() {
+        return new MongoIndex[] {
+          //the feed of a viewer is a range scan on this index
+          MongoIndex.index().asc(FeedItemMongoEntity.viewerId.getName()).desc(FeedItemMongoEntity.time.getName())
+                    .asc(FeedItemMongoEntity.activityId.getName()),
+          MongoIndex.index().asc(FeedItemMongoEntity.activityId.getName()),
+          MongoIndex.index().asc(FeedItemMongoEntity.viewerId.getName()).asc(FeedItemMongoEntity.activityId.getName()).unique()
+        };
+      }
+    },
+    FEED_STATE_COLLECTION("feedState") {
+      @Override
+      protected MongoIndex[] indexes() {
+        //read by _id only
+        return new MongoIndex[0];
+      }
+    },
+    FEED_HUB_COLLECTION("feedHub") {
+      @Override
+      protected MongoIndex[] indexes() {
+        return new MongoIndex[] {
+          MongoIndex.index().asc(FeedItemMongoEntity.providerId.getName()).asc(FeedItemMongoEntity.remoteId.getName())
+        };
+      }
+    },
+    MIGRATION_COLLECTION("migration") {
+      @Override
+      protected MongoIndex[] indexes() {
+        //read by _id only
+        return new MongoIndex[0];
       }
     };
     
+    /** The migration merging the duplicated stream items. */
+    private static final String MERGE_DUPLICATES_MIGRATION = "streamItem.mergeDuplicates";
+    
+    /** The migration giving to all the stream items of an activity its time. */
+    private static final String ALIGN_TIMES_MIGRATION = "streamItem.alignTimes";
+    
     private final String collectionName;
     
     private CollectionName(String name) {
@@ -107,28 +236,93 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       return repositoryName;
     }
     
+    /**
+     * Provisions the collections of a repository, it is done once by {@link MongoStorage#start()}
+     * for each configured repository.
+     * 
+     * @param mongoStorage the started mongo storage
+     * @param repositoryName the name of the repository
+     */
+    static void provision(MongoStorage mongoStorage, String repositoryName) {
+      for (CollectionName name : values()) {
+        name.provision(mongoStorage, repositoryName, false);
+      }
+    }
+    
     public DBCollection getCollection(AbstractMongoStorage mongoStorage) {
-      String name = collectionName();
-      Set<String> names = mongoStorage.getCollections();
-      boolean isExistingCollection = names.contains(name);
-      DBCollection got = mongoStorage.getCollection(name);
-      //
-      if (isExistingCollection == false) {
-        ensureIndex(mongoStorage, got);
+      String repositoryName = currentRepositoryName();
+      DBCollection got = mongoStorage.getRegisteredCollection(collectionName(repositoryName));
+      //the collections of a repository created after the start, or dropped by the tests, are provisioned once on first use
+      if (got == null) {
+        got = provision(mongoStorage.getMongoStorage(), repositoryName, true);
       }
       return got;
     }
     
-    protected abstract void ensureIndex(AbstractMongoStorage mongoStorage, DBCollection got);
+    /**
+     * Creates the missing indexes of the collection and registers it. A failure is logged and the collection
+     * is registered anyway, so the requests never provision it again: the indexes left are created on next start.
+     * 
+     * @param lazy true if the collection is provisioned on first use, it is then provisioned by one thread only
+     */
+    private DBCollection provision(MongoStorage mongoStorage, String repositoryName, boolean lazy) {
+      String name = collectionName(repositoryName);
+      if (lazy) {
+        synchronized (this) {
+          DBCollection got = mongoStorage.getRegisteredCollection(name);
+          if (got != null) {
+            return got;
+          }
+          return provision(mongoStorage, repositoryName, false);
+        }
+      }
+      DBCollection got = mongoStorage.getDB().getCollection(name);
+      try {
+        ensureIndex(mongoStorage, repositoryName, got);
+      } catch (MongoException e) {
+        LOG.error(String.format("Failed to create the indexes of %s, they are created again on next start", name), e);
+      }
+      return mongoStorage.registerCollection(name, got);
+    }
+    
+    /**
+     * Creates the missing indexes of the collection. The indexes already there are left as is,
+     * so the collections of an existing deployment get the indexes added by a new version.
+     * 
+     * @throws MongoException if a unique index can't be created
+     */
+    protected void ensureIndex(MongoStorage mongoStorage, String repositoryName, DBCollection got) {
+      ensureIndex(mongoStorage, got, indexes());
+    }
+    
+    protected void ensureIndex(MongoStorage mongoStorage, DBCollection got, MongoIndex[] indexes) {
+      if (indexes.length == 0) {
+        return;
+      }
+      boolean partialIndexes = mongoStorage.supportsPartialIndexes();
+      for (MongoIndex index : indexes) {
+        index.ensure(got, partialIndexes);
+      }
+    }
+    
+    /**
+     * Gets the indexes covering the queries done on the collection.
+     * @return
+     */
+    protected abstract MongoIndex[] indexes();
     
     
     /**
      * Gets the collection name with tenant name
      * @return
      */
-    private String collectionName() {
+    private String collectionName(String repositoryName) {
+      return repositoryName + "." + this.collectionName;
+    }
+    
+    private static String currentRepositoryName() {
       try {
-        return getRepositoryName() + "." + this.collectionName;
+        return getRepositoryName();
       } catch(RepositoryException e) {
         throw new RuntimeException();
       } catch(RepositoryConfigurationException e) {
@@ -188,6 +382,12 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   /** .. */
   public static final Pattern USER_NAME_VALIDATOR_REGEX = Pattern.compile("^[\\p{L}][\\p{L}._\\-\\d]+$");
   /** .. */
+  private static final char CURSOR_SEPARATOR = '.';
+  /** The number of items of an activity in a chunk of a page. */
+  private static final String CHUNK_ITEMS = "items";
+  /** The number of times the latest comments or the counter of an activity are rebuilt when its comments change meanwhile. */
+  private static final int COMMENT_UPDATE_ATTEMPTS = 3;
+  /** .. */
   private ActivityStorage activityStorage;
   private AbstractMongoStorage abstractMongoStorage;
   private MongoStorage mongoStorage;
@@ -197,6 +397,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   private RelationshipStorage relationshipStorage;
   private IdentityStorage identityStorage;
   private SpaceStorage spaceStorage;
+  private MongoStorageCacheService cacheService;
   //sets value to tell this storage to inject Streams or not
 
   public ActivityMongoStorageImpl(RelationshipStorage relationshipStorage,
@@ -209,6 +410,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     this.relationshipStorage = getRelationshipStorage();
     this.identityStorage = getIdentityStorage();
     this.spaceStorage = getSpaceStorage();
+    this.cacheService = getCacheService();
     this.activityProcessors = new TreeSet<ActivityProcessor>(processorComparator());
   }
   
@@ -235,6 +437,86 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return spaceStorage;
   }
   
+  private MongoStorageCacheService getCacheService() {
+    if (cacheService == null) {
+      cacheService = (MongoStorageCacheService) PortalContainer.getInstance().getComponentInstanceOfType(MongoStorageCacheService.class);
+    }
+
+    return cacheService;
+  }
+  
+  /**
+   * Finds an identity by id through the identity cache.
+   */
+  private Identity findIdentityById(String id) {
+    ExoCache<String, Identity> identityCache = cacheService.getIdentityCache();
+    Identity identity = identityCache.get(id);
+    if (identity == null) {
+      identity = identityStorage.findIdentityById(id);
+      if (identity != null) {
+        identityCache.put(id, identity);
+      }
+    }
+    return identity;
+  }
+  
+  /**
+   * Finds an identity by provider id and remote id through the identity caches,
+   * identities which don't exist are not cached.
+   */
+  private Identity findIdentity(String providerId, String remoteId) {
+    String key = MongoStorageCacheService.identityKey(providerId, remoteId);
+    String id = cacheService.getIdentityIndexCache().get(key);
+    if (id != null) {
+      Identity identity = cacheService.getIdentityCache().get(id);
+      if (identity != null) {
+        return identity;
+      }
+    }
+    //
+    Identity identity = identityStorage.findIdentity(providerId, remoteId);
+    if (identity != null) {
+      cacheService.getIdentityCache().put(identity.getId(), identity);
+      cacheService.getIdentityIndexCache().put(key, identity.getId());
+    }
+    return identity;
+  }
+  
+  /**
+   * Gets the connections and the spaces of an identity through the audience cache,
+   * the cached audience is removed by the relationship and space listeners.
+   */
+  StreamAudience getAudience(Identity ownerIdentity) {
+    ExoCache<String, StreamAudience> audienceCache = cacheService.getAudienceCache();
+    StreamAudience audience = audienceCache.get(ownerIdentity.getId());
+    if (audience == null) {
+      List<Identity> connections = relationshipStorage.getConnections(ownerIdentity);
+      String[] connectionIds = new String[connections.size()];
+      String[] connectionRemoteIds = new String[connections.size()];
+      for (int i = 0; i < connectionIds.length; i++) {
+        connectionIds[i] = connections.get(i).getId();
+        connectionRemoteIds[i] = connections.get(i).getRemoteId();
+      }
+      //
+      List<Space> spaces = spaceStorage.getMemberSpaces(ownerIdentity.getRemoteId());
+      String[] spacePrettyNames = new String[spaces.size()];
+      for (int i = 0; i < spacePrettyNames.length; i++) {
+        spacePrettyNames[i] = spaces.get(i).getPrettyName();
+      }
+      //
+      audience = new StreamAudience(connectionIds, connectionRemoteIds, spacePrettyNames);
+      audienceCache.put(ownerIdentity.getId(), audience);
+    }
+    return audience;
+  }
+  
+  /**
+   * Gets a collection of this storage, created with its indexes on first use.
+   */
+  DBCollection getCollection(CollectionName name) {
+    return name.getCollection(this.abstractMongoStorage);
+  }
+  
   private IdentityStorage getIdentityStorage() {
     if (identityStorage == null) {
       identityStorage = (IdentityStorage) PortalContainer.getInstance().getComponentInstanceOfType(IdentityStorage.class);
@@ -264,15 +546,11 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 	@Override
   public ExoSocialActivity getActivity(String activityId) throws ActivityStorageException {
 	  //
-    DBCollection collection = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
-    BasicDBObject query = new BasicDBObject();
-    query.append("_id", new ObjectId(activityId));
-    
-    BasicDBObject entity = (BasicDBObject) collection.findOne(query);
+    ActivityDocument document = findDocument(CollectionName.ACTIVITY_COLLECTION, activityId);
     
     ExoSocialActivity activity = new ExoSocialActivityImpl();
     
-    fillActivity(activity, entity);
+    fillActivity(activity, document);
     processActivity(activity);
     
     return activity;
@@ -299,7 +577,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return getListActivities(streamCol, query, sortObj, (int) offset, (int) limit);
   }
   
-  private BasicDBObject buildQueryForUserActivities(Identity owner, BasicDBObject timer) {
+  BasicDBObject buildQueryForUserActivities(Identity owner, BasicDBObject timer) {
     BasicDBObject query = new BasicDBObject();
     //
     BasicDBObject isHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
@@ -399,16 +677,12 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
         commentEntity.append(CommentMongoEntity.params.getName(), comment.getTemplateParams());
       }
       
-      List<String> mentioners = new ArrayList<String>();
-      activity.setMentionedIds(processMentions(activity.getMentionedIds(), comment.getTitle(), mentioners, true));
-      List<String> commenters = new ArrayList<String>(Arrays.asList(activity.getCommentedIds()));
-      if (comment.getUserId() != null && ! commenters.contains(comment.getUserId())) {
-        commenters.add(comment.getUserId());
-      }
-      activity.setCommentedIds(commenters.toArray(new String[0]));
-      
       comment.setMentionedIds(processMentions(comment.getTitle()));
       commentEntity.append(CommentMongoEntity.mentioners.getName(), comment.getMentionedIds());
+      //the activity in memory gets the same commenters and mentioners as the stored one
+      activity.setMentionedIds(addAll(activity.getMentionedIds(), comment.getMentionedIds()));
+      String[] newCommenters = comment.getUserId() != null ? new String[] { comment.getUserId() } : new String[0];
+      activity.setCommentedIds(addAll(activity.getCommentedIds(), newCommenters));
       
       commentColl.insert(commentEntity);
       
@@ -428,14 +702,22 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       }
       listIds.add(commentEntity.getString("_id"));
       activity.setReplyToId(listIds.toArray(new String[]{}));
-      //update activity
-      BasicDBObject updateFields = new BasicDBObject();
-      updateFields.append(ActivityMongoEntity.lastUpdated.getName(), commentMillis)
-                  .append(ActivityMongoEntity.commenters.getName(), activity.getCommentedIds())
-                  .append(ActivityMongoEntity.mentioners.getName(), activity.getMentionedIds())
-                  .append(ActivityMongoEntity.commentIds.getName(), listIds);
-      BasicDBObject update = new BasicDBObject("$set", updateFields);
-      activityCol.update(new BasicDBObject("_id", new ObjectId(activity.getId())), update);
+      //update activity, the comment, its poster and its mentions are appended so that concurrent comments are kept
+      BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(ActivityMongoEntity.lastUpdated.getName(), commentMillis));
+      BasicDBObject addToSet = new BasicDBObject(ActivityMongoEntity.commenters.getName(), new BasicDBObject("$each", newCommenters));
+      addToSet.append(ActivityMongoEntity.mentioners.getName(), new BasicDBObject("$each", comment.getMentionedIds()));
+      update.append("$addToSet", addToSet);
+      BasicDBObject push = new BasicDBObject(ActivityMongoEntity.commentIds.getName(), comment.getId());
+      int previewSize = mongoStorage.getCommentPreviewSize();
+      if (previewSize > 0) {
+        //the latest comments are embedded in the activity, the oldest one is dropped
+        BasicDBObject preview = new BasicDBObject("$each", new DBObject[] { toCommentPreview(commentEntity) });
+        push.append(ActivityMongoEntity.latestComments.getName(), preview.append("$slice", -previewSize));
+      }
+      update.append("$push", push);
+      update.append("$inc", new BasicDBObject(ActivityMongoEntity.commentCount.getName(), 1));
+      updateCommentCount(activityCol, new BasicDBObject("_id", new ObjectId(activity.getId())), update);
+      cacheService.removeActivity(activity.getId());
       
       //make COMMENTER ref
       Identity commenter = new Identity(comment.getUserId());
@@ -443,6 +725,19 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       commenter(commenter, activity, comment);
       //
       updateMentioner(poster, activity, comment);
+      //the other viewers of the activity see it at the time of the comment too
+      touchActivityRef(activity.getId(), commentMillis);
+      //
+      if (isFeedPushMode()) {
+        Set<String> viewerIds = new LinkedHashSet<String>();
+        if (comment.getMentionedIds() != null) {
+          viewerIds.addAll(Arrays.asList(comment.getMentionedIds()));
+        }
+        viewerIds.add(comment.getUserId());
+        pushToFeeds(activity.getId(), viewerIds, commentMillis, activity.isHidden());
+      }
+      //
+      mongoStorage.getReadRouter().wrote(comment.getUserId());
     } catch (MongoException ex) {
       throw new ActivityStorageException(ActivityStorageException.Type.FAILED_TO_SAVE_COMMENT, ex.getMessage());
     }
@@ -462,30 +757,8 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       //
       DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
       //
-      String[] mentionIds = processMentions(comment.getTitle());
-      for (String mentioner : mentionIds) {
-        //
-        BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
-        query.append(StreamItemMongoEntity.viewerId.getName(), mentioner);
-        
-        BasicDBObject entity = (BasicDBObject) streamCol.findOne(query);
-        //
-        if (entity == null) {
-          //create new stream item
-          entity = StreamViewType.MENTIONER.append(new BasicDBObject());
-          //
-          fillStreamItem(poster, activity, entity);
-          entity.append(StreamItemMongoEntity.viewerId.getName(), mentioner);
-          entity.append(StreamItemMongoEntity.time.getName(), comment.getUpdated().getTime());
-          streamCol.insert(entity);
-        } else {
-          //update mention
-          BasicDBObject update = new BasicDBObject();
-          updateMention(entity, update, mentioner);
-          update.append(StreamItemMongoEntity.time.getName(), comment.getUpdated().getTime());
-          streamCol.update(new BasicDBObject("_id", new ObjectId(entity.getString("_id"))), new BasicDBObject("$set", update));
-        }
-      }
+      //the mentions of the comment are processed by saveComment
+      upsertStreamItems(streamCol, poster, activity, comment.getMentionedIds(), ViewerType.MENTIONER, comment.getUpdated().getTime());
       
     } catch (MongoException e) {
       LOG.warn("Update mentioner on StreamItem failed. ", e);
@@ -493,58 +766,43 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     
 	}
 	
-	private void updateMention(BasicDBObject entity, BasicDBObject update, String mentionId) {
-	  //
-	  String mentionType = ViewerType.MENTIONER.name();
-	  BasicBSONList viewTypes = (BasicBSONList) entity.get(StreamItemMongoEntity.viewerTypes.getName());
-	  int actionNum = 1;
-	  if (viewTypes == null || viewTypes.size() == 0) {
-	    //
-	    update = StreamViewType.MENTIONER.append(update);
-	    update.append(StreamItemMongoEntity.viewerId.getName(), mentionId);
-	  } else {
-	    //
-	    String[] arrViewTypes = viewTypes.toArray(new String[0]);
-	    BasicDBObject actionNo = (BasicDBObject) entity.get(StreamItemMongoEntity.actionNo.getName());
-
-	    if (ArrayUtils.contains(arrViewTypes, mentionType)) {
-	      //increase number by 1
-	      actionNum = actionNo.getInt(mentionType) + 1;
-	    } else {
-	      //add new type MENTIONER
-	      update.append(StreamItemMongoEntity.viewerTypes.getName(), ArrayUtils.add(arrViewTypes, mentionType));
-	    }
-
-	    //update actionNo
-	    actionNo.append(mentionType, actionNum);
-	    update.append(StreamItemMongoEntity.actionNo.getName(), actionNo);
-	  }
-	}
-	
+	/**
+	 * Propagates the time and the visibility of the activity to all its stream items in one multi-update,
+	 * served by the index on activityId.
+	 * The activity itself already holds lastUpdated and hidable, they are written by {@link #_saveActivity(ExoSocialActivity)}.
+	 */
 	private void updateActivityRef(String activityId, long time, boolean isHidden) {
-	  DBCollection activityColl = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
-	  //
-    BasicDBObject update = new BasicDBObject();
-    Map<String, Object> fields = new HashMap<String, Object>();
-    fields.put(ActivityMongoEntity.lastUpdated.getName(), time);
-    fields.put(ActivityMongoEntity.hidable.getName(), isHidden);
-    BasicDBObject set = new BasicDBObject(fields);
-    //
-    update.append("$set", set);
-    BasicDBObject query = new BasicDBObject(ActivityMongoEntity.id.getName(), new ObjectId(activityId));
-    
-    WriteResult result = activityColl.update(query, update);
-    LOG.debug("UPDATED TIME ACTIVITY: " + result.toString());
-    //update refs
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-    query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
-    fields = new HashMap<String, Object>();
-    fields.put(StreamItemMongoEntity.time.getName(), time);
-    fields.put(StreamItemMongoEntity.hiable.getName(), isHidden);
-    set = new BasicDBObject(fields);
-    update = new BasicDBObject("$set", set);
-    result = streamCol.updateMulti(query, update);
+    BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
+    BasicDBObject set = new BasicDBObject(StreamItemMongoEntity.time.getName(), time);
+    set.append(StreamItemMongoEntity.hiable.getName(), isHidden);
+    //
+    WriteResult result = streamCol.updateMulti(query, new BasicDBObject("$set", set));
     LOG.debug("UPDATED ACTIVITY Reference: " + result.toString());
+    //
+    if (isFeedPushMode()) {
+      DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+      set = new BasicDBObject(FeedItemMongoEntity.time.getName(), time);
+      set.append(FeedItemMongoEntity.hiable.getName(), isHidden);
+      feedCol.updateMulti(new BasicDBObject(FeedItemMongoEntity.activityId.getName(), activityId), new BasicDBObject("$set", set));
+    }
+	}
+	
+	/**
+	 * Moves all the stream items of the activity up to the time of its last action, in one multi-update served
+	 * by the index on activityId. A stream item is never moved back by a concurrent older action.
+	 * 
+	 * The stream items of an activity share its time so that the pages seek on the time before grouping by activity,
+	 * see {@link #readActivityPage(List, DBObject, int, ReadPreference)}. The likes are moved by
+	 * {@link #updateActivityRef(String, long, boolean)}, they are saved with the activity.
+	 */
+	private void touchActivityRef(String activityId, long time) {
+	  DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+	  streamCol.updateMulti(new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId),
+	                        new BasicDBObject("$max", new BasicDBObject(StreamItemMongoEntity.time.getName(), time)));
+	  if (isFeedPushMode()) {
+	    touchFeeds(activityId, time);
+	  }
 	}
 	
 	@Override
@@ -566,6 +824,9 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 	    } else {
 	      _saveActivity(activity);
 	    }
+	    //the owner and the poster read their streams from the primary for a while
+	    mongoStorage.getReadRouter().wrote(owner.getId());
+	    mongoStorage.getReadRouter().wrote(activity.getPosterId());
 	    
     } catch (MongoException e) {
       LOG.warn("Insert activity failed.", e);
@@ -582,7 +843,8 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject query = new BasicDBObject();
     query.append(ActivityMongoEntity.id.getName(), new ObjectId(activity.getId()));
     
-    BasicDBObject activityEntity = (BasicDBObject) activityCol.findOne(query);
+    //only the likers are needed to compute the changes of stream items
+    BasicDBObject activityEntity = (BasicDBObject) activityCol.findOne(query, new BasicDBObject(ActivityMongoEntity.likers.getName(), 1));
     String[] orginLikers = ((BasicBSONList) activityEntity.get(ActivityMongoEntity.likers.getName())).toArray(new String[0]);
     
     long currentMillis = System.currentTimeMillis();
@@ -592,6 +854,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     fillActivityEntityFromActivity(null, activity, update, false);
     
     WriteResult result = activityCol.update(query, new BasicDBObject("$set", update));
+    cacheService.removeActivity(activity.getId());
     LOG.debug("==============>UPDATED ACTIVITY: " + result.toString());
     //
     updateActivityRef(activity.getId(), activity.getUpdated().getTime(), activity.isHidden());
@@ -625,6 +888,8 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       activityEntity.append(ActivityMongoEntity.poster.getName(), posterId);
       activityEntity.append(ActivityMongoEntity.owner.getName(), owner.getRemoteId());
       activityEntity.append(ActivityMongoEntity.streamId.getName(), owner.getId());
+      activityEntity.append(ActivityMongoEntity.commentCount.getName(), 0);
+      activityEntity.append(ActivityMongoEntity.latestComments.getName(), new ArrayList<DBObject>());
       activity.setPosterId(posterId);
     }
 
@@ -657,48 +922,14 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   /*
    * Private
    */
-  private void fillActivity(ExoSocialActivity activity, BasicDBObject activityEntity) {
+  private void fillActivity(ExoSocialActivity activity, ActivityDocument document) {
 
-    activity.setId(activityEntity.getString(ActivityMongoEntity.id.getName()));
-    activity.setTitle(activityEntity.getString(ActivityMongoEntity.title.getName()));
-    activity.setTitleId(activityEntity.getString(ActivityMongoEntity.titleId.getName()));
-    activity.setBody(activityEntity.getString(ActivityMongoEntity.body.getName()));
-    activity.setBodyId(activityEntity.getString(ActivityMongoEntity.bodyId.getName()));
-    
-    activity.setPosterId(activityEntity.getString(ActivityMongoEntity.poster.getName()));
-    activity.setUserId(activityEntity.getString(ActivityMongoEntity.poster.getName()));
-    activity.setStreamOwner(activityEntity.getString(ActivityMongoEntity.owner.getName()));
-    activity.setPermanLink(activityEntity.getString(ActivityMongoEntity.permaLink.getName()));
-    BasicBSONList likers = (BasicBSONList) activityEntity.get(ActivityMongoEntity.likers.getName());
-    activity.setLikeIdentityIds(likers != null ? likers.toArray(new String[0]) : new String[0]);
+    document.fill(activity);
     
-    BasicBSONList mentions = (BasicBSONList) activityEntity.get(ActivityMongoEntity.mentioners.getName());
-    activity.setMentionedIds(mentions != null ? mentions.toArray(new String[0]) : new String[0]);
-    
-    BasicBSONList commenters = (BasicBSONList) activityEntity.get(ActivityMongoEntity.commenters.getName());
-    activity.setCommentedIds(commenters != null ? commenters.toArray(new String[0]) : new String[0]);
-
-    activity.isHidden(activityEntity.getBoolean(ActivityMongoEntity.hidable.getName()));
-    activity.isLocked(activityEntity.getBoolean(ActivityMongoEntity.lockable.getName()));
-    
-    activity.setPostedTime(activityEntity.getLong(ActivityMongoEntity.postedTime.getName()));
-    activity.setUpdated(activityEntity.getLong(ActivityMongoEntity.lastUpdated.getName()));
-    
-    activity.setAppId(activityEntity.getString(ActivityMongoEntity.appId.getName()));
-    activity.setExternalId(activityEntity.getString(ActivityMongoEntity.externalId.getName()));
-    activity.setType(activityEntity.getString(ActivityMongoEntity.activity_type.getName()));
-    
-    Map<String, String> params = (Map<String, String>) activityEntity.get(ActivityMongoEntity.params.getName());
-    activity.setTemplateParams(params);
-    
-    List<String> commentIds = (List<String>) activityEntity.get(ActivityMongoEntity.commentIds.getName());
-    if (commentIds != null)
-    activity.setReplyToId(commentIds.toArray(new String[]{}));
-    
-    String streamId = activityEntity.getString(ActivityMongoEntity.streamId.getName());
+    String streamId = document.getStreamId();
     if (streamId != null) {
       activity.setStreamId(streamId);
-      Identity identity = identityStorage.findIdentityById(streamId);
+      Identity identity = findIdentityById(streamId);
       ActivityStream stream = new ActivityStreamImpl();
       stream.setPrettyId(identity.getRemoteId());
       stream.setType(identity.getProviderId());
@@ -731,6 +962,9 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     
     //fill streams
     newStreamItemForNewActivity(poster, activity);
+    if (isFeedPushMode()) {
+      pushToFeeds(activity.getId(), getFeedViewers(poster, activity.getPosterId(), activity.getMentionedIds()), activityMillis, activity.isHidden());
+    }
     
     return activity.getMentionedIds();
   }
@@ -767,14 +1001,8 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   private void mention(Identity poster, ExoSocialActivity activity, String[] mentionIds) throws MongoException {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
-    for (String mentioner : mentionIds) {
-      BasicDBObject entity = new BasicDBObject();
-      fillStreamItem(poster, activity, entity);
-      entity = StreamViewType.MENTIONER.append(entity);
-      entity.append(StreamItemMongoEntity.viewerId.getName(), mentioner);
-      entity.append(StreamItemMongoEntity.time.getName(), activity.getPostedTime());
-      streamCol.insert(entity);
-    }
+    //the poster may mention himself, then his stream item already exists
+    upsertStreamItems(streamCol, poster, activity, mentionIds, ViewerType.MENTIONER, activity.getPostedTime());
   }
 
   /**
@@ -786,48 +1014,93 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
    */
   private void commenter(Identity commenter, ExoSocialActivity activity, ExoSocialActivity comment) throws MongoException {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    upsertStreamItem(streamCol, commenter, activity, comment.getUserId(), ViewerType.COMMENTER, comment.getUpdated().getTime());
+  }
+  
+  /**
+   * Creates or updates in a single request the stream item of a viewer of the activity.
+   * 
+   * The viewer type is added to viewerTypes if missing, and the number of actions of this type
+   * is increased by 1 except for LIKER, so concurrent actions on the same activity are never lost.
+   * 
+   * @param streamCol the stream item collection
+   * @param poster the identity used to fill the new stream item
+   * @param activity the activity
+   * @param viewerId the viewer id
+   * @param type the viewer type
+   * @param time the time of the action
+   * @throws MongoException
+   */
+  private void upsertStreamItem(DBCollection streamCol, Identity poster, ExoSocialActivity activity, String viewerId, ViewerType type, long time) throws MongoException {
     BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
-    Identity streamOwner = identityStorage.findIdentityById(activity.getStreamId());
-    if (! SpaceIdentityProvider.NAME.equals(streamOwner.getProviderId())) {
+    query.append(StreamItemMongoEntity.viewerId.getName(), viewerId);
+    //
+    BasicDBObject update = buildStreamItemUpsert(poster, activity, type, time);
+    try {
+      streamCol.update(query, update, true, false);
+    } catch (MongoException e) {
+      if (! isDuplicateKey(e)) {
+        throw e;
+      }
+      //a concurrent upsert inserted the stream item first, it is updated now
+      streamCol.update(query, update, true, false);
     }
-    query.append(StreamItemMongoEntity.viewerId.getName(), comment.getUserId());
-    
-    String commentType = ViewerType.COMMENTER.name();
-    
-    BasicDBObject o = (BasicDBObject) streamCol.findOne(query);
-    if (o == null) {
-      //create new stream item for COMMENTER
-      o = StreamViewType.COMMENTER.append(new BasicDBObject());
-      fillStreamItem(commenter, activity, o);
-      o.append(StreamItemMongoEntity.viewerId.getName(), comment.getUserId());
-      o.append(StreamItemMongoEntity.time.getName(), comment.getUpdated().getTime());
-      streamCol.insert(o);
-    } else {
-      //update COMMENTER
-      BasicDBObject update = new BasicDBObject();
-      BasicBSONList viewTypes = (BasicBSONList) o.get(StreamItemMongoEntity.viewerTypes.getName());
-      BasicDBObject actionNo = (BasicDBObject) o.get(StreamItemMongoEntity.actionNo.getName());
-      if (viewTypes == null || viewTypes.size() == 0) {
-        update = StreamViewType.COMMENTER.append(update);
-      } else {
-        int commentNum = 1;
-        if (viewTypes.contains(commentType)) {
-          //
-          commentNum = actionNo.getInt(commentType) + 1;
-        } else {
-          //add new COMMENTER element to viewerTypes field
-          update.append(StreamItemMongoEntity.viewerTypes.getName(), ArrayUtils.add(viewTypes.toArray(new String[0]), commentType));
+  }
+  
+  /**
+   * Creates or updates the stream items of several viewers of the activity in one unordered bulk request.
+   * 
+   * @see #upsertStreamItem(DBCollection, Identity, ExoSocialActivity, String, ViewerType, long)
+   */
+  private void upsertStreamItems(DBCollection streamCol, Identity poster, ExoSocialActivity activity, String[] viewerIds, ViewerType type, long time) throws MongoException {
+    if (viewerIds == null || viewerIds.length == 0) {
+      return;
+    }
+    //
+    BasicDBObject update = buildStreamItemUpsert(poster, activity, type, time);
+    BulkWriteOperation bulk = streamCol.initializeUnorderedBulkOperation();
+    for (String viewerId : viewerIds) {
+      BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
+      query.append(StreamItemMongoEntity.viewerId.getName(), viewerId);
+      bulk.find(query).upsert().update(update);
+    }
+    //
+    try {
+      bulk.execute();
+    } catch (BulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        if (error.getCode() != 11000 && error.getCode() != 11001) {
+          throw e;
         }
-        //
-        actionNo.append(commentType, commentNum);
-        update.append(StreamItemMongoEntity.actionNo.getName(), actionNo);
       }
-      
-      //do update
-      update.append(StreamItemMongoEntity.time.getName(), comment.getUpdated().getTime());
-      streamCol.update(new BasicDBObject("_id", new ObjectId(o.getString("_id"))), new BasicDBObject("$set", update));
+      //concurrent upserts inserted some stream items first, they are updated now
+      for (BulkWriteError error : e.getWriteErrors()) {
+        upsertStreamItem(streamCol, poster, activity, viewerIds[error.getIndex()], type, time);
+      }
     }
-    
+  }
+  
+  private BasicDBObject buildStreamItemUpsert(Identity poster, ExoSocialActivity activity, ViewerType type, long time) {
+    BasicDBObject onInsert = new BasicDBObject();
+    fillStreamItem(poster, activity, onInsert);
+    //activityId comes from the query
+    onInsert.remove(StreamItemMongoEntity.activityId.getName());
+    //
+    BasicDBObject update = new BasicDBObject();
+    update.append("$addToSet", new BasicDBObject(StreamItemMongoEntity.viewerTypes.getName(), type.name()));
+    //the stream item keeps the time of the last action on the activity, like the other stream items of the activity
+    update.append("$max", new BasicDBObject(StreamItemMongoEntity.time.getName(), time));
+    if (ViewerType.LIKER.equals(type)) {
+      onInsert.append(StreamItemMongoEntity.actionNo.getName(), new BasicDBObject());
+    } else {
+      update.append("$inc", new BasicDBObject(StreamItemMongoEntity.actionNo.getName() + "." + type.name(), 1));
+    }
+    update.append("$setOnInsert", onInsert);
+    return update;
+  }
+  
+  private static boolean isDuplicateKey(MongoException e) {
+    return e.getCode() == 11000 || e.getCode() == 11001;
   }
   
   private void fillStreamItem(Identity poster, ExoSocialActivity activity, BasicDBObject streamItemEntity) {
@@ -869,7 +1142,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       if (!USER_NAME_VALIDATOR_REGEX.matcher(remoteId).matches()) {
         continue;
       }
-      Identity identity = identityStorage.findIdentity(OrganizationIdentityProvider.NAME, remoteId);
+      Identity identity = findIdentity(OrganizationIdentityProvider.NAME, remoteId);
       // if not the right mention then ignore
       if (identity != null) { 
         mentionerIds = (String[]) ArrayUtils.add(mentionerIds, identity.getId());
@@ -885,26 +1158,61 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public void deleteActivity(String activityId) throws ActivityStorageException {
-    //
+    //the activity is removed first, then its stream items are no more loaded
     DBCollection collection = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = new BasicDBObject();
     query.append("_id", new ObjectId(activityId));
     
-    WriteResult result = collection.remove(query);
-    LOG.debug("DELETED: " + result);
+    BasicDBObject activityEntity = (BasicDBObject) collection.findAndRemove(query);
+    LOG.debug("DELETED: " + activityEntity);
+    cacheService.removeActivity(activityId);
+    if (activityEntity != null) {
+      List<?> commentIds = (BasicBSONList) activityEntity.get(ActivityMongoEntity.commentIds.getName());
+      if (commentIds != null) {
+        String[] ids = new String[commentIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = commentIds.get(i).toString();
+        }
+        cacheService.removeActivity(ids);
+      }
+    }
     deleteActivityRef(activityId);
+    deleteActivityComments(activityId);
+    if (isFeedPushMode()) {
+      DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+      feedCol.remove(new BasicDBObject(FeedItemMongoEntity.activityId.getName(), activityId));
+    }
+    //
+    if (activityEntity != null) {
+      wrote(activityEntity.getString(ActivityMongoEntity.streamId.getName()));
+      wrote(activityEntity.getString(ActivityMongoEntity.poster.getName()));
+    }
   }
   
   private void deleteActivityRef(String activityId) {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = new BasicDBObject();
     query.append(StreamItemMongoEntity.activityId.getName(), activityId);
-    
-    DBCursor cur = streamCol.find(query);
-    
-    while (cur.hasNext()) {
-      DBObject o = cur.next();
-      LOG.debug(String.format("REF DELETED %s: ", o.get("_id")) + streamCol.remove(o));
+    //
+    WriteResult result = streamCol.remove(query);
+    LOG.debug("REFS DELETED: " + result);
+  }
+  
+  private void deleteActivityComments(String activityId) {
+    DBCollection commentCol = CollectionName.COMMENT_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = new BasicDBObject();
+    query.append(CommentMongoEntity.activityId.getName(), activityId);
+    //
+    WriteResult result = commentCol.remove(query);
+    LOG.debug("COMMENTS DELETED: " + result);
+  }
+
+  /**
+   * Records a write for an identity read from a deleted document, which may lack it.
+   */
+  private void wrote(String identityId) {
+    if (identityId != null) {
+      mongoStorage.getReadRouter().wrote(identityId);
     }
   }
 
@@ -916,90 +1224,242 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     query.append("_id", new ObjectId(commentId));
     
     BasicDBObject comment = (BasicDBObject) commentCol.findOne(query);
+    if (comment == null) {
+      return;
+    }
     
     WriteResult result = commentCol.remove(query);
+    cacheService.removeActivity(commentId);
     LOG.debug("DELETE COMMENT: " + result);
     
-    String[] mentionIds = processMentions(comment.getString(ActivityMongoEntity.title.getName()));
+    BasicBSONList commentMentions = (BasicBSONList) comment.get(CommentMongoEntity.mentioners.getName());
+    String[] mentionIds = commentMentions != null ? commentMentions.toArray(new String[0]) : processMentions(comment.getString(CommentMongoEntity.title.getName()));
     //update activities refs for mentioner
     removeMentioner(activityId, mentionIds);
     
-    
     DBCollection activityCol = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
     query = new BasicDBObject();
     query.append(ActivityMongoEntity.id.getName(), new ObjectId(activityId));
-    BasicDBObject activityEntity = (BasicDBObject) activityCol.findOne(query);
-    
-    BasicBSONList mentions = (BasicBSONList) activityEntity.get(ActivityMongoEntity.mentioners.getName());
-    String[] mentioners = mentions != null ? mentions.toArray(new String[0]) : new String[0];
-    
-    BasicBSONList comments = (BasicBSONList) activityEntity.get(ActivityMongoEntity.commenters.getName());
-    String[] commenters = comments != null ? comments.toArray(new String[0]) : new String[0];
-    
-    mentioners = processMentions(mentioners, comment.getString(CommentMongoEntity.title.getName()), new ArrayList<String>(), false);
-    //
-    commenters = processCommenters(commenters, comment.getString(CommentMongoEntity.poster.getName()), new ArrayList<String>(), false);
-    //
-    List<String> commentIds = (List<String>) activityEntity.get(ActivityMongoEntity.commentIds.getName());
-    commentIds.remove(commentId);
-    
-    BasicDBObject updateFields = new BasicDBObject();
-    updateFields.append(ActivityMongoEntity.commentIds.getName(), commentIds)
-                .append(ActivityMongoEntity.commenters.getName(), commenters)
-                .append(ActivityMongoEntity.mentioners.getName(), mentioners);
-    
-    BasicDBObject update = new BasicDBObject("$set", updateFields);
+    //the identities which are no more commenters or mentioned are pulled, the others are left untouched
+    BasicDBObject pull = new BasicDBObject();
+    String commenterId = comment.getString(CommentMongoEntity.poster.getName());
+    if (commenterId != null && ! hasCommented(commentCol, activityId, commenterId)) {
+      pull.append(ActivityMongoEntity.commenters.getName(), commenterId);
+    }
+    List<Object> unmentioned = new ArrayList<Object>();
+    for (String mentionId : mentionIds) {
+      if (! isMentioned(activityId, mentionId)) {
+        unmentioned.add(mentionId);
+        //the mentions stored by the earlier versions as identityId@number
+        unmentioned.add(Pattern.compile("^" + Pattern.quote(mentionId + MENTION_CHAR)));
+      }
+    }
+    if (! unmentioned.isEmpty()) {
+      pull.append(ActivityMongoEntity.mentioners.getName(), new BasicDBObject("$in", unmentioned));
+    }
+    if (! pull.isEmpty()) {
+      activityCol.update(query, new BasicDBObject("$pull", pull));
+    }
+    //the counter is decreased only by the request which pulls the comment
+    query.append(ActivityMongoEntity.commentIds.getName(), commentId);
+    BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject(ActivityMongoEntity.commentIds.getName(), commentId));
+    update.append("$inc", new BasicDBObject(ActivityMongoEntity.commentCount.getName(), -1));
+    updateCommentCount(activityCol, query, update);
+    //the embedded latest comments are rebuilt from the comment ids left
+    if (mongoStorage.getCommentPreviewSize() > 0) {
+      refreshCommentPreview(activityCol, activityId, mongoStorage.getCommentPreviewSize());
+    }
+    cacheService.removeActivity(activityId);
     //
-    activityCol.update(new BasicDBObject("_id", new ObjectId(activityId)), update);
-    
+    wrote(commenterId);
 	}
   
+  /**
+   * Updates an activity and its comment counter. The activities saved before the counter existed get it
+   * from the size of their comment ids first, then the update is done again.
+   * 
+   * @param activityCol the activity collection
+   * @param query the query of the activity, by id
+   * @param update the update increasing or decreasing the counter
+   */
+  private void updateCommentCount(DBCollection activityCol, BasicDBObject query, BasicDBObject update) {
+    String commentCount = ActivityMongoEntity.commentCount.getName();
+    BasicDBObject counted = new BasicDBObject(query).append(commentCount, new BasicDBObject("$exists", true));
+    if (activityCol.update(counted, update).getN() > 0) {
+      return;
+    }
+    initCommentCount(activityCol, (ObjectId) query.get(ActivityMongoEntity.id.getName()));
+    activityCol.update(query, update);
+  }
+  
+  /**
+   * Sets the comment counter of an activity which has none to the size of its comment ids. The counter is only
+   * set if the comment ids didn't change since they were read, the comments saved or deleted meanwhile
+   * initialize the counter themselves before updating it.
+   */
+  private void initCommentCount(DBCollection activityCol, ObjectId activityId) {
+    String commentCount = ActivityMongoEntity.commentCount.getName();
+    String commentIdsField = ActivityMongoEntity.commentIds.getName();
+    for (int attempt = 0; attempt < COMMENT_UPDATE_ATTEMPTS; attempt++) {
+      BasicDBObject query = new BasicDBObject(ActivityMongoEntity.id.getName(), activityId);
+      query.append(commentCount, new BasicDBObject("$exists", false));
+      DBObject activityEntity = activityCol.findOne(query, new BasicDBObject(commentIdsField, 1), ReadPreference.primary());
+      if (activityEntity == null) {
+        //already counted, or deleted
+        return;
+      }
+      BasicBSONList commentIds = (BasicBSONList) activityEntity.get(commentIdsField);
+      query.append(commentIdsField, commentIds);
+      BasicDBObject set = new BasicDBObject(commentCount, commentIds != null ? commentIds.size() : 0);
+      if (activityCol.update(query, new BasicDBObject("$set", set)).getN() > 0) {
+        return;
+      }
+    }
+    LOG.warn("Comment counter of the activity " + activityId + " not initialized, its comments keep changing");
+  }
+  
+  /**
+   * Tells if an identity still has a comment on the activity.
+   */
+  private boolean hasCommented(DBCollection commentCol, String activityId, String commenterId) {
+    BasicDBObject query = new BasicDBObject(CommentMongoEntity.activityId.getName(), activityId);
+    query.append(CommentMongoEntity.poster.getName(), commenterId);
+    return commentCol.findOne(query, new BasicDBObject("_id", 1)) != null;
+  }
+  
+  /**
+   * Tells if an identity is still mentioned by the activity or one of its comments, from the MENTIONER
+   * type of its stream item which counts the mentions.
+   */
+  private boolean isMentioned(String activityId, String mentionId) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
+    query.append(StreamItemMongoEntity.viewerId.getName(), mentionId);
+    query.append(StreamItemMongoEntity.viewerTypes.getName(), ViewerType.MENTIONER.name());
+    return streamCol.findOne(query, new BasicDBObject("_id", 1)) != null;
+  }
+  
+  /**
+   * Builds the copy of a comment embedded in its activity.
+   */
+  private static BasicDBObject toCommentPreview(DBObject commentEntity) {
+    BasicDBObject preview = new BasicDBObject(commentEntity.toMap());
+    preview.removeField(CommentMongoEntity.activityId.getName());
+    return preview;
+  }
+  
+  /**
+   * Rebuilds the latest comments embedded in an activity when they are no more its last comments. The activity
+   * is read again after the comment id was pulled, and the comments are only set if its comment ids didn't change
+   * meanwhile: a comment saved concurrently is pushed to the latest comments by its own update, the rebuild is
+   * done again from the new comment ids.
+   * 
+   * @param activityCol the activity collection
+   * @param activityId the activity id
+   * @param previewSize the number of embedded comments
+   */
+  private void refreshCommentPreview(DBCollection activityCol, String activityId, int previewSize) {
+    String commentIdsField = ActivityMongoEntity.commentIds.getName();
+    String latestCommentsField = ActivityMongoEntity.latestComments.getName();
+    BasicDBObject byId = new BasicDBObject("_id", new ObjectId(activityId));
+    BasicDBObject fields = new BasicDBObject(commentIdsField, 1).append(latestCommentsField, 1);
+    for (int attempt = 0; attempt < COMMENT_UPDATE_ATTEMPTS; attempt++) {
+      DBObject activityEntity = activityCol.findOne(byId, fields, ReadPreference.primary());
+      //the activities saved before the latest comments were embedded are left as they are
+      if (activityEntity == null || activityEntity.get(latestCommentsField) == null || activityEntity.get(commentIdsField) == null) {
+        return;
+      }
+      BasicBSONList commentIds = (BasicBSONList) activityEntity.get(commentIdsField);
+      List<String> ids = new ArrayList<String>(commentIds.size());
+      for (Object id : commentIds) {
+        ids.add(id.toString());
+      }
+      ids = ids.subList(Math.max(0, ids.size() - previewSize), ids.size());
+      if (isCommentPreview((BasicBSONList) activityEntity.get(latestCommentsField), ids)) {
+        return;
+      }
+      BasicDBObject query = new BasicDBObject(byId).append(commentIdsField, commentIds);
+      BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(latestCommentsField, loadCommentPreview(ids)));
+      if (activityCol.update(query, update).getN() > 0) {
+        return;
+      }
+    }
+    LOG.warn("Latest comments of the activity " + activityId + " not rebuilt, its comments keep changing");
+  }
+  
+  private static boolean isCommentPreview(BasicBSONList comments, List<String> commentIds) {
+    if (comments.size() != commentIds.size()) {
+      return false;
+    }
+    for (int i = 0; i < comments.size(); i++) {
+      if (! commentIds.get(i).equals(String.valueOf(((DBObject) comments.get(i)).get(CommentMongoEntity.id.getName())))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Loads the comments of the given ids to embed them in their activity.
+   * 
+   * @param commentIds the ids of the comments, oldest first
+   * @return the copies of the comments in the same order, the ids which no longer exist are skipped
+   */
+  private List<DBObject> loadCommentPreview(List<String> commentIds) {
+    List<ObjectId> ids = new ArrayList<ObjectId>(commentIds.size());
+    for (String commentId : commentIds) {
+      ids.add(new ObjectId(commentId));
+    }
+    DBCollection commentCol = CollectionName.COMMENT_COLLECTION.getCollection(this.abstractMongoStorage);
+    Map<String, DBObject> comments = new HashMap<String, DBObject>();
+    DBCursor cur = commentCol.find(new BasicDBObject(CommentMongoEntity.id.getName(), new BasicDBObject("$in", ids)));
+    try {
+      while (cur.hasNext()) {
+        DBObject comment = cur.next();
+        comments.put(comment.get(CommentMongoEntity.id.getName()).toString(), comment);
+      }
+    } finally {
+      cur.close();
+    }
+    List<DBObject> preview = new ArrayList<DBObject>(commentIds.size());
+    for (String commentId : commentIds) {
+      DBObject comment = comments.get(commentId);
+      if (comment != null) {
+        preview.add(toCommentPreview(comment));
+      }
+    }
+    return preview;
+  }
+  
   private void removeMentioner(String activityId, String... mentionIds) {
     //
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    String mentionType = ViewerType.MENTIONER.name();
+    String mentionNo = StreamItemMongoEntity.actionNo.getName() + "." + mentionType;
+    //
     BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
     query.append(StreamItemMongoEntity.viewerId.getName(), new BasicDBObject("$in", mentionIds));
-    
-    DBCursor cur = streamCol.find(query);
-    while (cur.hasNext()) {
-      BasicDBObject it = (BasicDBObject) cur.next();
-      BasicDBObject update = new BasicDBObject();
-      //update
-      BasicBSONList viewTypes = (BasicBSONList) it.get(StreamItemMongoEntity.viewerTypes.getName());
-      
-      if (viewTypes != null) {
-        String mentionType = ViewerType.MENTIONER.name();
-        String posterId = it.getString(StreamItemMongoEntity.poster.getName());
-        //if MENTIONER is Poster, don't remove stream item
-        boolean removeable = ArrayUtils.contains(mentionIds, posterId) ? false : true;
-        //
-        String[] oldViewTypes = viewTypes.toArray(new String[0]);
-        if (oldViewTypes.length == 0) continue;
-        
-        BasicDBObject actionNo = (BasicDBObject) it.get(StreamItemMongoEntity.actionNo.getName());
-        if (actionNo.containsField(mentionType)) {
-          int number = actionNo.getInt(mentionType) - 1;
-          if (number == 0) {
-            //remove Mentioner
-            String[] newViewTypes = (String[]) ArrayUtils.removeElement(oldViewTypes, ViewerType.MENTIONER.name());
-            if (newViewTypes.length == 0 && removeable) {
-              //
-              streamCol.remove(it);
-              continue;
-            }
-            //
-            actionNo.remove(mentionType);
-            update.append(StreamItemMongoEntity.viewerTypes.getName(), newViewTypes);
-          } else {
-            actionNo.append(mentionType, number);
-          }
-          //{ "actionNo" : {mentioner -> number} }
-          update.append(StreamItemMongoEntity.actionNo.getName(), actionNo);
-          streamCol.update(new BasicDBObject("_id", new ObjectId(it.getString("_id"))), new BasicDBObject("$set", update));
-        }
+    query.append(mentionNo, new BasicDBObject("$gt", 0));
+    streamCol.updateMulti(query, new BasicDBObject("$inc", new BasicDBObject(mentionNo, -1)));
+    //remove MENTIONER from the stream items which are no more mentioned
+    query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
+    query.append(StreamItemMongoEntity.viewerId.getName(), new BasicDBObject("$in", mentionIds));
+    query.append(mentionNo, new BasicDBObject("$lte", 0));
+    BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject(StreamItemMongoEntity.viewerTypes.getName(), mentionType));
+    update.append("$unset", new BasicDBObject(mentionNo, ""));
+    streamCol.updateMulti(query, update);
+    //if MENTIONER is Poster, don't remove stream item
+    query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId);
+    query.append(StreamItemMongoEntity.viewerId.getName(), new BasicDBObject("$in", mentionIds));
+    query.append(StreamItemMongoEntity.viewerTypes.getName(), new BasicDBObject("$size", 0));
+    query.append(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$nin", mentionIds));
+    streamCol.remove(query);
+    //
+    if (isFeedPushMode()) {
+      for (String mentionId : mentionIds) {
+        refreshFeedItem(mentionId, activityId);
       }
     }
-    
   }
 
 	@Override
@@ -1026,7 +1486,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = buildQueryForUserActivities(owner, null);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, owner));
 	}
 
 	@Override
@@ -1063,27 +1523,527 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   }
   
   private List<ExoSocialActivity> getListActivities(DBCollection streamCol, BasicDBObject query, BasicDBObject sortObj, int offset, int limit) {
-    DBCursor cursor = streamCol.find(query).sort(sortObj);
+    return getListActivities(streamCol, query, sortObj, offset, limit, streamCol.getReadPreference());
+  }
+  
+  private List<ExoSocialActivity> getListActivities(DBCollection streamCol, BasicDBObject query, BasicDBObject sortObj, int offset, int limit, ReadPreference readPreference) {
+    List<String> activityIds = getActivityIds(streamCol, query, sortObj, offset, limit, readPreference);
+    //loads the whole page at once
+    return getActivities(activityIds, readPreference);
+  }
+  
+  private List<ExoSocialActivity> getListActivities(List<StreamQuery> sources, BasicDBObject sortObj, int offset, int limit, ReadPreference readPreference) {
     List<String> activityIds = new ArrayList<String>();
+    for (DBObject row : aggregateActivities(sources, sortObj, offset, limit, readPreference)) {
+      activityIds.add(row.get("_id").toString());
+    }
+    return getActivities(activityIds, readPreference);
+  }
+  
+  /**
+   * Groups by activity the items matching the queries of several sources, then merges the rows of the sources
+   * by time, an activity found in several sources is kept once.
+   * 
+   * A page is read by chunks of the most recent items of the sources, until it holds the rows up to the end of the
+   * page, see {@link #readActivityPage(List, DBObject, int, ReadPreference)}. The sources are grouped as a whole
+   * when all the activities are requested.
+   * 
+   * @see StreamMerger
+   */
+  private List<DBObject> aggregateActivities(List<StreamQuery> sources, BasicDBObject sortObj, int offset, int limit, ReadPreference readPreference) {
+    if (sources.size() == 1) {
+      StreamQuery source = sources.get(0);
+      return aggregateActivities(source.getCollection(), source.getQuery(), sortObj, offset, limit, readPreference);
+    }
+    if (limit > 0) {
+      //the chunks are sorted as the streams, most recent first
+      List<DBObject> rows = readActivityPage(sources, null, offset + limit, readPreference);
+      return rows.size() > offset ? rows.subList(offset, rows.size()) : new ArrayList<DBObject>();
+    }
+    //each source gives all its rows, the sources are read concurrently
+    List<Callable<List<DBObject>>> queries = new ArrayList<Callable<List<DBObject>>>(sources.size());
+    for (StreamQuery source : sources) {
+      queries.add(newAggregation(source, sortObj, limit, readPreference));
+    }
+    List<List<DBObject>> rows = mongoStorage.getStreamQueryExecutor().invokeAll(queries);
+    return StreamMerger.merge(rows, offset, limit);
+  }
+  
+  private Callable<List<DBObject>> newAggregation(final StreamQuery source, final BasicDBObject sortObj, final int limit, final ReadPreference readPreference) {
+    return new Callable<List<DBObject>>() {
+      public List<DBObject> call() {
+        return aggregateActivities(source.getCollection(), source.getQuery(), sortObj, 0, limit, readPreference);
+      }
+    };
+  }
+  
+  /**
+   * Gets one page of distinct activity ids matching the query. The stream items are grouped by
+   * activity on server side, each activity takes the most recent time of its stream items, so
+   * only the ids of the requested page are returned to the client.
+   * 
+   * @param streamCol the stream item collection
+   * @param query the query on stream items
+   * @param sortObj the sort on stream item time
+   * @param offset the number of activities to skip
+   * @param limit the maximum number of activities, negative for no limit
+   * @param readPreference the read preference
+   * @return the ids of activities
+   */
+  private List<String> getActivityIds(DBCollection streamCol, BasicDBObject query, BasicDBObject sortObj, int offset, int limit, ReadPreference readPreference) {
+    List<String> activityIds = new ArrayList<String>();
+    for (DBObject row : aggregateActivities(streamCol, query, sortObj, offset, limit, readPreference)) {
+      activityIds.add(row.get("_id").toString());
+    }
+    return activityIds;
+  }
+  
+  /**
+   * Groups the stream items matching the query by activity.
+   * 
+   * @return one row by activity, the activity id as <code>_id</code> and the most recent stream item time as <code>time</code>
+   */
+  private List<DBObject> aggregateActivities(DBCollection streamCol, BasicDBObject query, BasicDBObject sortObj, int offset, int limit, ReadPreference readPreference) {
+    List<DBObject> rows = new ArrayList<DBObject>();
+    if (limit == 0) {
+      return rows;
+    }
+    //
+    List<DBObject> pipeline = buildActivityPipeline(query, sortObj, offset, limit);
+    Cursor cursor = streamCol.aggregate(pipeline, aggregationOptions(), readPreference);
+    try {
+      while (cursor.hasNext()) {
+        rows.add(cursor.next());
+      }
+    } finally {
+      cursor.close();
+    }
+    return rows;
+  }
+  
+  /**
+   * Builds the pipeline grouping the stream items or the feed items matching the query by activity.
+   */
+  static List<DBObject> buildActivityPipeline(BasicDBObject query, BasicDBObject sortObj, int offset, int limit) {
+    String time = StreamItemMongoEntity.time.getName();
+    BasicDBObject group = new BasicDBObject("_id", "$" + StreamItemMongoEntity.activityId.getName());
+    group.append(time, new BasicDBObject("$max", "$" + time));
+    //activities posted at the same time are sorted by id to keep pages stable
+    BasicDBObject sort = new BasicDBObject(sortObj).append("_id", -1);
+    
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add(new BasicDBObject("$match", query));
+    pipeline.add(new BasicDBObject("$project", streamItemProjection(true)));
+    pipeline.add(new BasicDBObject("$group", group));
+    pipeline.add(new BasicDBObject("$sort", sort));
+    if (offset > 0) {
+      pipeline.add(new BasicDBObject("$skip", offset));
+    }
+    if (limit > 0) {
+      pipeline.add(new BasicDBObject("$limit", limit));
+    }
+    return pipeline;
+  }
+  
+  /**
+   * Counts the distinct activities of the stream items matching the query. The stream items
+   * are grouped by activity then counted on server side, only the number is returned.
+   * 
+   * @param streamCol the stream item collection
+   * @param query the query on stream items
+   * @param readPreference the read preference
+   * @return the number of activities
+   */
+  private int countActivities(DBCollection streamCol, BasicDBObject query, ReadPreference readPreference) {
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add(new BasicDBObject("$match", query));
+    pipeline.add(new BasicDBObject("$project", streamItemProjection(false)));
+    pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", "$" + StreamItemMongoEntity.activityId.getName())));
+    pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", null).append("count", new BasicDBObject("$sum", 1))));
+    //
+    Cursor cursor = streamCol.aggregate(pipeline, aggregationOptions(), readPreference);
+    try {
+      return cursor.hasNext() ? ((Number) cursor.next().get("count")).intValue() : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+  
+  /**
+   * Gets the projection of the stream or feed items read by the scans. The <code>_id</code> is left out
+   * so that the indexes ending with the activity id cover the scans.
+   * 
+   * @param withTime true to keep the time, needed to sort the activities
+   */
+  private static BasicDBObject streamItemProjection(boolean withTime) {
+    BasicDBObject projection = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), 1);
+    if (withTime) {
+      projection.append(StreamItemMongoEntity.time.getName(), 1);
+    }
+    return projection.append("_id", 0);
+  }
+  
+  /**
+   * Counts the distinct activities of the items matching the queries of several sources.
+   */
+  private int countActivities(List<StreamQuery> sources, ReadPreference readPreference) {
+    if (sources.size() == 1) {
+      return countActivities(sources.get(0).getCollection(), sources.get(0).getQuery(), readPreference);
+    }
+    BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
+    List<Callable<List<DBObject>>> queries = new ArrayList<Callable<List<DBObject>>>(sources.size());
+    for (StreamQuery source : sources) {
+      queries.add(newAggregation(source, sortObj, -1, readPreference));
+    }
+    return StreamMerger.count(mongoStorage.getStreamQueryExecutor().invokeAll(queries));
+  }
+  
+  /**
+   * Gets the read preference of a read which accepts some replication lag, done for the specified identity.
+   */
+  private ReadPreference routedRead(DBCollection collection, Identity identity) {
+    return mongoStorage.getReadRouter().getReadPreference(collection, identity.getId());
+  }
+  
+  static AggregationOptions aggregationOptions() {
+    return AggregationOptions.builder()
+                             .allowDiskUse(true)
+                             .outputMode(AggregationOptions.OutputMode.CURSOR)
+                             .build();
+  }
+  
+  /**
+   * Gets the activity feed page after the given cursor.
+   * 
+   * @param ownerIdentity the owner of the feed
+   * @param cursor the cursor returned with the previous page, <code>null</code> for the first page
+   * @param limit the maximum number of activities
+   * @return the page of activities
+   * @see ActivityPage
+   */
+  public ActivityPage getActivityFeedPage(Identity ownerIdentity, String cursor, int limit) {
+    List<StreamQuery> sources = buildFeedQueries(ownerIdentity, null, true);
+    //
+    return getActivityPage(sources, cursor, limit);
+  }
+  
+  /**
+   * Gets the page of user activities after the given cursor.
+   * 
+   * @param owner the owner of the stream
+   * @param cursor the cursor returned with the previous page, <code>null</code> for the first page
+   * @param limit the maximum number of activities
+   * @return the page of activities
+   */
+  public ActivityPage getUserActivitiesPage(Identity owner, String cursor, int limit) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = buildQueryForUserActivities(owner, null);
+    //
+    return getActivityPage(streamCol, query, cursor, limit);
+  }
+  
+  /**
+   * Gets the page of connections activities after the given cursor.
+   * 
+   * @param ownerIdentity the owner of the stream
+   * @param cursor the cursor returned with the previous page, <code>null</code> for the first page
+   * @param limit the maximum number of activities
+   * @return the page of activities
+   */
+  public ActivityPage getActivitiesOfConnectionsPage(Identity ownerIdentity, String cursor, int limit) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = buildQueryForActivityOfConnections(ownerIdentity, null);
+    //
+    return getActivityPage(streamCol, query, cursor, limit);
+  }
+  
+  /**
+   * Gets the page of activities of the spaces of the user after the given cursor.
+   * 
+   * @param ownerIdentity the member of spaces
+   * @param cursor the cursor returned with the previous page, <code>null</code> for the first page
+   * @param limit the maximum number of activities
+   * @return the page of activities
+   */
+  public ActivityPage getUserSpacesActivitiesPage(Identity ownerIdentity, String cursor, int limit) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = getUserSpaceActivitiesDBCursor(ownerIdentity, null);
+    //
+    return getActivityPage(streamCol, query, cursor, limit);
+  }
+  
+  /**
+   * Gets the page of space activities after the given cursor.
+   * 
+   * @param spaceIdentity the space identity
+   * @param cursor the cursor returned with the previous page, <code>null</code> for the first page
+   * @param limit the maximum number of activities
+   * @return the page of activities
+   */
+  public ActivityPage getSpaceActivitiesPage(Identity spaceIdentity, String cursor, int limit) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = buildQueryForSpaceActivities(spaceIdentity, null);
+    //
+    return getActivityPage(streamCol, query, cursor, limit);
+  }
+  
+  private ActivityPage getActivityPage(DBCollection streamCol, BasicDBObject query, String cursor, int limit) {
+    return getActivityPage(Collections.singletonList(new StreamQuery(streamCol, query)), cursor, limit);
+  }
+  
+  private ActivityPage getActivityPage(List<StreamQuery> sources, String cursor, int limit) {
+    String time = StreamItemMongoEntity.time.getName();
+    ReadPreference readPreference = sources.get(0).getCollection().getReadPreference();
+    DBObject position = parseCursor(cursor);
+    List<DBObject> rows = readActivityPage(sources, position, limit, readPreference);
+    //a full page means there may be older activities
+    String nextCursor = null;
+    if (limit > 0 && rows.size() == limit) {
+      DBObject last = rows.get(rows.size() - 1);
+      nextCursor = toCursor(((Number) last.get(time)).longValue(), last.get("_id").toString());
+    }
+    //
+    List<String> activityIds = new ArrayList<String>(rows.size());
+    for (DBObject row : rows) {
+      activityIds.add(row.get("_id").toString());
+    }
+    return new ActivityPage(getActivities(activityIds, readPreference), nextCursor);
+  }
+  
+  /**
+   * Reads the activity rows of a page older than the position of a cursor, by chunks of items: each source
+   * scans its most recent items on the index up to the time of the position, and only the items of the chunk
+   * are grouped by activity.
+   * 
+   * The items of an activity all have the time of its last update, so the rows of a source more recent than its
+   * last item are complete. When a chunk is full, the rows at the time of its last item may miss items beyond the
+   * chunk: the rows at or before the most recent of these times are read again with the next chunk, which is twice
+   * as big. The chunks are read until the page is full or the sources have no more items.
+   * 
+   * @param sources the sources of the stream
+   * @param position the position of the cursor, <code>null</code> for the first page
+   * @param limit the number of activities of the page
+   * @param readPreference the read preference
+   * @return the rows of the page, the most recent first
+   */
+  private List<DBObject> readActivityPage(List<StreamQuery> sources, DBObject position, int limit, ReadPreference readPreference) {
+    String timeField = StreamItemMongoEntity.time.getName();
+    List<DBObject> page = new ArrayList<DBObject>(Math.max(limit, 0));
+    if (limit <= 0) {
+      return page;
+    }
+    Set<Object> paged = new HashSet<Object>();
+    Long maxTime = position != null ? ((Number) position.get(timeField)).longValue() : null;
+    int chunk = limit;
+    while (page.size() < limit) {
+      List<Callable<List<DBObject>>> queries = new ArrayList<Callable<List<DBObject>>>(sources.size());
+      for (StreamQuery source : sources) {
+        queries.add(newChunkAggregation(source, maxTime, chunk, readPreference));
+      }
+      List<List<DBObject>> chunks = mongoStorage.getStreamQueryExecutor().invokeAll(queries);
+      //the time up to which the rows of all the sources are complete, none when no chunk is full
+      Long boundary = null;
+      for (List<DBObject> rows : chunks) {
+        if (countItems(rows) >= chunk) {
+          long last = ((Number) rows.get(rows.size() - 1).get(timeField)).longValue();
+          boundary = boundary != null ? Math.max(boundary, last) : last;
+        }
+      }
+      List<List<DBObject>> complete = new ArrayList<List<DBObject>>(chunks.size());
+      for (List<DBObject> rows : chunks) {
+        List<DBObject> kept = new ArrayList<DBObject>(rows.size());
+        for (DBObject row : rows) {
+          long time = ((Number) row.get(timeField)).longValue();
+          if ((boundary == null || time > boundary) && isOlder(row, position) && ! paged.contains(row.get("_id"))) {
+            kept.add(row);
+          }
+        }
+        complete.add(kept);
+      }
+      for (DBObject row : StreamMerger.merge(complete, 0, limit - page.size())) {
+        paged.add(row.get("_id"));
+        page.add(row);
+      }
+      if (boundary == null) {
+        break;
+      }
+      maxTime = boundary;
+      chunk *= 2;
+    }
+    return page;
+  }
+  
+  private Callable<List<DBObject>> newChunkAggregation(final StreamQuery source, final Long maxTime, final int chunk, final ReadPreference readPreference) {
+    return new Callable<List<DBObject>>() {
+      public List<DBObject> call() {
+        List<DBObject> rows = new ArrayList<DBObject>();
+        List<DBObject> pipeline = buildActivityChunkPipeline(source.getQuery(), maxTime, chunk);
+        Cursor cursor = source.getCollection().aggregate(pipeline, aggregationOptions(), readPreference);
+        try {
+          while (cursor.hasNext()) {
+            rows.add(cursor.next());
+          }
+        } finally {
+          cursor.close();
+        }
+        return rows;
+      }
+    };
+  }
+  
+  /**
+   * Builds the pipeline grouping by activity a chunk of the most recent items matching the query, up to a time.
+   * The time and the sort are applied before the <code>$group</code>, so the chunk is a range scan on the index
+   * of the query.
+   * 
+   * @param query the query on the stream items or the feed items
+   * @param maxTime the time of the most recent items, <code>null</code> for no limit
+   * @param chunk the number of items of the chunk
+   * @return one row by activity with its id as <code>_id</code>, its time and the number of its items in the chunk,
+   * sorted as the pages
+   */
+  static List<DBObject> buildActivityChunkPipeline(BasicDBObject query, Long maxTime, int chunk) {
+    String time = StreamItemMongoEntity.time.getName();
+    BasicDBObject match = query;
+    if (maxTime != null) {
+      match = new BasicDBObject("$and", new DBObject[] { query, new BasicDBObject(time, new BasicDBObject("$lte", maxTime)) });
+    }
+    BasicDBObject group = new BasicDBObject("_id", "$" + StreamItemMongoEntity.activityId.getName());
+    group.append(time, new BasicDBObject("$max", "$" + time));
+    group.append(CHUNK_ITEMS, new BasicDBObject("$sum", 1));
+    //
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add(new BasicDBObject("$match", match));
+    pipeline.add(new BasicDBObject("$sort", new BasicDBObject(time, -1)));
+    pipeline.add(new BasicDBObject("$limit", chunk));
+    pipeline.add(new BasicDBObject("$project", streamItemProjection(true)));
+    pipeline.add(new BasicDBObject("$group", group));
+    pipeline.add(new BasicDBObject("$sort", new BasicDBObject(time, -1).append("_id", -1)));
+    return pipeline;
+  }
+  
+  /**
+   * Counts the items of a chunk grouped by activity.
+   */
+  private static int countItems(List<DBObject> rows) {
+    int items = 0;
+    for (DBObject row : rows) {
+      items += ((Number) row.get(CHUNK_ITEMS)).intValue();
+    }
+    return items;
+  }
+  
+  /**
+   * Gets the position of a cursor, as a row of the aggregations: the activity id as <code>_id</code>
+   * and its time as <code>time</code>.
+   * 
+   * @param cursor the cursor, can be <code>null</code>
+   * @return the position or <code>null</code> if there is no cursor
+   */
+  private DBObject parseCursor(String cursor) {
+    if (cursor == null || cursor.length() == 0) {
+      return null;
+    }
+    //
+    int index = cursor.indexOf(CURSOR_SEPARATOR);
+    try {
+      long time = Long.parseLong(cursor.substring(0, index), Character.MAX_RADIX);
+      return new BasicDBObject("_id", cursor.substring(index + 1)).append(StreamItemMongoEntity.time.getName(), time);
+    } catch (RuntimeException e) {
+      throw new ActivityStorageException(ActivityStorageException.Type.ILLEGAL_ARGUMENTS, "Invalid cursor: " + cursor, e);
+    }
+  }
+  
+  /**
+   * Tells if a row is older than the position of a cursor. The rows with the same time as the cursor are older
+   * when their id is lower, the same order as the pages, so nothing is skipped or repeated on equal times.
+   * 
+   * @param row the row of an activity
+   * @param position the position of the cursor, can be <code>null</code>
+   * @return true if the row comes after the cursor, always true if there is no cursor
+   */
+  private static boolean isOlder(DBObject row, DBObject position) {
+    if (position == null) {
+      return true;
+    }
+    String timeField = StreamItemMongoEntity.time.getName();
+    long time = ((Number) row.get(timeField)).longValue();
+    long positionTime = ((Number) position.get(timeField)).longValue();
+    if (time != positionTime) {
+      return time < positionTime;
+    }
+    return row.get("_id").toString().compareTo(position.get("_id").toString()) < 0;
+  }
+  
+  private static String toCursor(long time, String activityId) {
+    return Long.toString(time, Character.MAX_RADIX) + CURSOR_SEPARATOR + activityId;
+  }
+  
+  /**
+   * Loads the activities of the given ids by one query on the activity collection.
+   * 
+   * @param activityIds the ids of the activities, sorted as expected in the result
+   * @param readPreference the read preference
+   * @return the activities in the same order as the ids, the ids which no longer exist are skipped
+   */
+  private List<ExoSocialActivity> getActivities(List<String> activityIds, ReadPreference readPreference) {
     List<ExoSocialActivity> result = new LinkedList<ExoSocialActivity>();
-    offset = offset > 0 ? offset : 0;
-    limit = limit < 0 ? cursor.size() : limit;
-    while (cursor.hasNext() && limit > 0) {
-      BasicDBObject row = (BasicDBObject) cursor.next();
-      String activityId = row.getString(StreamItemMongoEntity.activityId.getName());
-      if (! activityIds.contains(activityId)) {
-        if (offset > 0) {
-          offset--;
-          continue;
+    if (activityIds.isEmpty()) {
+      return result;
+    }
+    //
+    ExoCache<String, ActivityDocument> activityCache = cacheService.getActivityCache();
+    Map<String, ActivityDocument> documents = new HashMap<String, ActivityDocument>();
+    Map<String, Long> stamps = new HashMap<String, Long>();
+    List<ObjectId> ids = new ArrayList<ObjectId>(activityIds.size());
+    for (String activityId : activityIds) {
+      ActivityDocument document = activityCache.get(activityId);
+      if (document != null) {
+        documents.put(activityId, document);
+      } else {
+        stamps.put(activityId, cacheService.getActivityStamp(activityId));
+        ids.add(new ObjectId(activityId));
+      }
+    }
+    //only the activities missing from the cache are loaded
+    if (!ids.isEmpty()) {
+      //a secondary may still return the documents before the last writes, they are not cached
+      boolean cached = readPreference == null || ReadPreference.primary().equals(readPreference);
+      DBCollection activityCol = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
+      DBCursor cur = activityCol.find(buildQueryForActivities(ids)).setReadPreference(readPreference).setDecoderFactory(ActivityDecoder.FACTORY);
+      try {
+        while (cur.hasNext()) {
+          ActivityDocument document = (ActivityDocument) cur.next();
+          documents.put(document.getId(), document);
+          if (cached) {
+            cacheService.putActivity(document.getId(), document, stamps.get(document.getId()));
+          }
         }
-        activityIds.add(activityId);
-        result.add(getStorage().getActivity(activityId));
-        limit--;
+      } finally {
+        cur.close();
+      }
+    }
+    //keeps the order given by the stream items
+    for (String activityId : activityIds) {
+      ActivityDocument document = documents.get(activityId);
+      if (document == null) {
+        continue;
       }
+      ExoSocialActivity activity = new ExoSocialActivityImpl();
+      fillActivity(activity, document);
+      processActivity(activity);
+      result.add(activity);
     }
     return result;
   }
 
+  /**
+   * Builds the query loading the activities of a page by their ids.
+   */
+  static BasicDBObject buildQueryForActivities(List<ObjectId> ids) {
+    return new BasicDBObject(ActivityMongoEntity.id.getName(), new BasicDBObject("$in", ids));
+  }
+
   @Override
   public int getNumberOfActivitesOnActivityFeed(Identity ownerIdentity) {
     return getNumberOfActivitesOnActivityFeedForUpgrade(ownerIdentity);
@@ -1091,10 +2051,9 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public int getNumberOfActivitesOnActivityFeedForUpgrade(Identity ownerIdentity) {
-    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-    BasicDBObject query = buildQueryForActivityFeed(ownerIdentity, null);
+    List<StreamQuery> sources = buildFeedQueries(ownerIdentity, null);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(sources, routedRead(sources.get(0).getCollection(), ownerIdentity));
   }
 
   @Override
@@ -1102,51 +2061,416 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return getNumberOfNewerOnActivityFeed(ownerIdentity, baseActivity.getPostedTime());
   }
   
-  private BasicDBObject buildQueryForActivityFeed(Identity ownerIdentity, BasicDBObject timer) {
+  private boolean isFeedPushMode() {
+    return FeedMode.PUSH.equals(mongoStorage.getFeedMode());
+  }
+  
+  /**
+   * Builds the queries the activity feed is read from, depending on the feed mode: the stream items in PULL mode,
+   * the feed items in PUSH mode with the stream items of the feed hubs of the owner if any. A feed of the PUSH mode
+   * is read from the stream items until it is built.
+   */
+  private List<StreamQuery> buildFeedQueries(Identity ownerIdentity, BasicDBObject timer) {
+    return buildFeedQueries(ownerIdentity, timer, false);
+  }
+  
+  /**
+   * @param split <code>true</code> to query each branch of the PULL mode query on its own, when the queries run concurrently.
+   * The pages are read this way, each branch being a cheap indexed query; the counts keep the single query
+   * counted on server side.
+   */
+  private List<StreamQuery> buildFeedQueries(Identity ownerIdentity, BasicDBObject timer, boolean split) {
+    List<StreamQuery> sources = new ArrayList<StreamQuery>(4);
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    if (! isFeedPushMode() || ! ensureFeed(ownerIdentity)) {
+      if (split && mongoStorage.getStreamQueryExecutor().isParallel()) {
+        for (BasicDBObject branch : buildQueryBranchesForActivityFeed(ownerIdentity, getAudience(ownerIdentity))) {
+          sources.add(new StreamQuery(streamCol, withTimerAndNotHidden(branch, timer)));
+        }
+      } else {
+        sources.add(new StreamQuery(streamCol, buildQueryForActivityFeed(ownerIdentity, timer)));
+      }
+      return sources;
+    }
+    sources.add(new StreamQuery(CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage), buildQueryForFeedItems(ownerIdentity, timer)));
+    //
+    BasicDBObject pulled = buildQueryForPulledFeed(getAudience(ownerIdentity), timer);
+    if (pulled != null) {
+      sources.add(new StreamQuery(streamCol, pulled));
+    }
+    return sources;
+  }
+  
+  /**
+   * Builds the query of the feed items of an identity, in PUSH mode.
+   */
+  BasicDBObject buildQueryForFeedItems(Identity ownerIdentity, BasicDBObject timer) {
+    BasicDBObject byViewer = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), ownerIdentity.getId());
+    BasicDBObject isHidden = new BasicDBObject(FeedItemMongoEntity.hiable.getName(), false);
     BasicDBObject query = new BasicDBObject();
-    //Filter by relationship
-    List<Identity> relationships = relationshipStorage.getConnections(ownerIdentity);
-    Set<String> relationshipIds = new HashSet<String>();
-    Set<String> relationshipRemoteIds = new HashSet<String>();
-    for (Identity identity : relationships) {
-      relationshipIds.add(identity.getId());
-      relationshipRemoteIds.add(identity.getRemoteId());
+    if (timer != null) {
+      query.append("$and", new BasicDBObject[] {byViewer, isHidden, timer});
+    } else {
+      query.append("$and", new BasicDBObject[] {byViewer, isHidden});
+    }
+    return query;
+  }
+  
+  /**
+   * Builds the query of the activities of the feed hubs of an audience, which are not pushed to the feed.
+   * The hubs are read with each feed, a hub marked on any node is pulled at once by all the feeds.
+   * 
+   * @return the query, <code>null</code> when none of the connections and spaces is a feed hub
+   */
+  private BasicDBObject buildQueryForPulledFeed(StreamAudience audience, BasicDBObject timer) {
+    List<String> pulledConnectionIds = new ArrayList<String>();
+    List<String> pulledSpacePrettyNames = new ArrayList<String>();
+    if (audience.getConnectionIds().length > 0 || audience.getSpacePrettyNames().length > 0) {
+      DBCollection hubCol = CollectionName.FEED_HUB_COLLECTION.getCollection(this.abstractMongoStorage);
+      BasicDBObject byConnections = new BasicDBObject(FeedItemMongoEntity.id.getName(), new BasicDBObject("$in", audience.getConnectionIds()));
+      BasicDBObject bySpaces = new BasicDBObject(FeedItemMongoEntity.providerId.getName(), SpaceIdentityProvider.NAME);
+      bySpaces.append(FeedItemMongoEntity.remoteId.getName(), new BasicDBObject("$in", audience.getSpacePrettyNames()));
+      DBCursor cursor = hubCol.find(new BasicDBObject("$or", new BasicDBObject[] { byConnections, bySpaces }));
+      try {
+        while (cursor.hasNext()) {
+          BasicDBObject hub = (BasicDBObject) cursor.next();
+          if (SpaceIdentityProvider.NAME.equals(hub.getString(FeedItemMongoEntity.providerId.getName()))) {
+            pulledSpacePrettyNames.add(hub.getString(FeedItemMongoEntity.remoteId.getName()));
+          } else {
+            pulledConnectionIds.add(hub.getString(FeedItemMongoEntity.id.getName()));
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    if (pulledConnectionIds.isEmpty() && pulledSpacePrettyNames.isEmpty()) {
+      return null;
     }
+    //
     BasicDBObject byRelationships = new BasicDBObject("$and", new BasicDBObject[] { 
-        new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", relationshipIds)),
-        new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", relationshipRemoteIds))});
-    //Doesn't include hidden activities
+        new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", pulledConnectionIds)),
+        new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getConnectionRemoteIds()))});
+    BasicDBObject bySpaces = new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", pulledSpacePrettyNames));
     BasicDBObject isHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
     //
+    BasicDBObject query = new BasicDBObject();
+    if (timer != null) {
+      query.append("$and", new BasicDBObject[] {timer, isHidden, new BasicDBObject("$or", new BasicDBObject[]{ bySpaces, byRelationships })});
+    } else {
+      query.append("$and", new BasicDBObject[] {isHidden, new BasicDBObject("$or", new BasicDBObject[]{ bySpaces, byRelationships })});
+    }
+    return query;
+  }
+  
+  /**
+   * Gets the identities whose feed shows a new activity: the stream owner and the poster, the mentioned identities,
+   * the members of the space or the connections common to the stream owner and the poster.
+   */
+  private Set<String> getFeedViewers(Identity streamOwner, String posterId, String[] mentionIds) {
+    Set<String> viewerIds = new LinkedHashSet<String>();
+    int threshold = mongoStorage.getFeedPushThreshold();
+    if (SpaceIdentityProvider.NAME.equals(streamOwner.getProviderId())) {
+      Space space = spaceStorage.getSpaceByPrettyName(streamOwner.getRemoteId());
+      if (space != null && space.getMembers() != null && space.getMembers().length > threshold) {
+        //too many members, the members pull the activities of the space
+        markFeedHub(streamOwner);
+      } else if (space != null && space.getMembers() != null) {
+        for (String member : space.getMembers()) {
+          Identity identity = findIdentity(OrganizationIdentityProvider.NAME, member);
+          if (identity != null) {
+            viewerIds.add(identity.getId());
+          }
+        }
+      }
+    } else {
+      viewerIds.add(streamOwner.getId());
+      //poster in the connections and owner in the connections
+      Identity poster = posterId == null || posterId.equals(streamOwner.getId()) ? streamOwner : findIdentityById(posterId);
+      String[] posterConnectionIds = poster != null ? getAudience(poster).getConnectionIds() : new String[0];
+      if (posterConnectionIds.length > threshold) {
+        //too many connections, the connections pull the activities of the poster
+        markFeedHub(poster);
+      } else {
+        Set<String> connectionIds = new HashSet<String>(Arrays.asList(getAudience(streamOwner).getConnectionIds()));
+        if (poster != streamOwner) {
+          connectionIds.retainAll(Arrays.asList(posterConnectionIds));
+        }
+        viewerIds.addAll(connectionIds);
+      }
+    }
+    if (posterId != null) {
+      viewerIds.add(posterId);
+    }
+    if (mentionIds != null) {
+      viewerIds.addAll(Arrays.asList(mentionIds));
+    }
+    return viewerIds;
+  }
+  
+  /**
+   * Marks a poster or a space as a feed hub, its activities are pulled at read time from now on.
+   * The feeds read the hubs with their pages, nothing is cached for it.
+   */
+  private void markFeedHub(Identity identity) {
+    DBCollection hubCol = CollectionName.FEED_HUB_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject hub = new BasicDBObject(FeedItemMongoEntity.providerId.getName(), identity.getProviderId());
+    hub.append(FeedItemMongoEntity.remoteId.getName(), identity.getRemoteId());
+    hub.append(FeedItemMongoEntity.time.getName(), System.currentTimeMillis());
+    try {
+      WriteResult result = hubCol.update(new BasicDBObject(FeedItemMongoEntity.id.getName(), identity.getId()),
+                                         new BasicDBObject("$setOnInsert", hub), true, false);
+      if (result.isUpdateOfExisting()) {
+        return;
+      }
+    } catch (MongoException e) {
+      if (! isDuplicateKey(e)) {
+        throw e;
+      }
+      return;
+    }
+    LOG.info(String.format("%s %s has become a feed hub, its activities are pulled at read time", identity.getProviderId(), identity.getRemoteId()));
+  }
+  
+  /**
+   * Adds the activity to the feeds of the viewers, or moves it up when it is already there.
+   */
+  private void pushToFeeds(String activityId, Collection<String> viewerIds, long time, boolean isHidden) throws MongoException {
+    if (viewerIds.isEmpty()) {
+      return;
+    }
+    DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject update = new BasicDBObject("$max", new BasicDBObject(FeedItemMongoEntity.time.getName(), time));
+    update.append("$set", new BasicDBObject(FeedItemMongoEntity.hiable.getName(), isHidden));
+    //
+    List<BasicDBObject> queries = new ArrayList<BasicDBObject>(viewerIds.size());
+    BulkWriteOperation bulk = feedCol.initializeUnorderedBulkOperation();
+    for (String viewerId : viewerIds) {
+      BasicDBObject query = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), viewerId);
+      query.append(FeedItemMongoEntity.activityId.getName(), activityId);
+      queries.add(query);
+      bulk.find(query).upsert().update(update);
+    }
+    try {
+      bulk.execute();
+    } catch (BulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        if (error.getCode() != 11000 && error.getCode() != 11001) {
+          throw e;
+        }
+      }
+      //concurrent upserts inserted some feed items first, they are updated now
+      for (BulkWriteError error : e.getWriteErrors()) {
+        feedCol.update(queries.get(error.getIndex()), update, true, false);
+      }
+    }
+  }
+  
+  /**
+   * Moves up the activity in all the feeds showing it.
+   */
+  private void touchFeeds(String activityId, long time) {
+    DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+    feedCol.updateMulti(new BasicDBObject(FeedItemMongoEntity.activityId.getName(), activityId),
+                        new BasicDBObject("$max", new BasicDBObject(FeedItemMongoEntity.time.getName(), time)));
+  }
+  
+  /**
+   * Removes the activity from the feed of the viewer when the stream items don't show it to him anymore.
+   */
+  private void refreshFeedItem(String viewerId, String activityId) {
+    Identity viewer = findIdentityById(viewerId);
+    if (viewer == null) {
+      return;
+    }
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject query = buildQueryForActivityFeed(viewer, new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activityId));
+    if (streamCol.findOne(query, streamItemProjection(false)) == null) {
+      DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+      BasicDBObject feedItem = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), viewerId);
+      feedItem.append(FeedItemMongoEntity.activityId.getName(), activityId);
+      feedCol.remove(feedItem);
+    }
+  }
+  
+  /**
+   * Tells if the feed of the identity is built with his current connections and spaces. When it has never been built
+   * or when they changed since, its rebuild is queued in the background.
+   * 
+   * This is also how the feeds are backfilled when switching from PULL to PUSH mode: each feed is built
+   * from the stream items after its first read.
+   * 
+   * @return true if the feed can be read
+   */
+  private boolean ensureFeed(Identity ownerIdentity) {
+    StreamAudience audience = getAudience(ownerIdentity);
+    if (audience.isFeedChecked()) {
+      return true;
+    }
+    DBCollection stateCol = CollectionName.FEED_STATE_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject state = (BasicDBObject) stateCol.findOne(new BasicDBObject(FeedItemMongoEntity.id.getName(), ownerIdentity.getId()));
+    if (state != null && state.getInt(FeedItemMongoEntity.audience.getName()) == audience.getFingerprint()) {
+      audience.setFeedChecked(true);
+      return true;
+    }
+    //the query is built with the audience of this request, the rebuild only reads and writes the collections
+    final String ownerId = ownerIdentity.getId();
+    final BasicDBObject query = buildQueryForActivityFeed(ownerIdentity, null);
+    final int fingerprint = audience.getFingerprint();
+    mongoStorage.getFeedRebuilder().submit(ownerId, new Runnable() {
+      public void run() {
+        rebuildFeed(ownerId, query, fingerprint);
+      }
+    });
+    return false;
+  }
+  
+  /**
+   * Builds the feed of an identity from the stream items, in the calling thread. It can be run by an admin job
+   * to backfill the feeds before switching from PULL to PUSH mode.
+   * 
+   * @param ownerIdentity the owner of the feed
+   */
+  public void rebuildFeed(Identity ownerIdentity) {
+    rebuildFeed(ownerIdentity.getId(), buildQueryForActivityFeed(ownerIdentity, null), getAudience(ownerIdentity).getFingerprint());
+  }
+  
+  /**
+   * Upserts the activities of the stream items in the feed and removes the ones which left it. Only the activities
+   * of the last {@link MongoStorage#getFeedRebuildDays()} days are rebuilt, the older feed items are left as they are.
+   * 
+   * The feed items are not removed first, the activities pushed to the feed during the rebuild are kept. The rebuilt
+   * feed items are stamped with the start time of the rebuild, the older stamps in the rebuilt window are removed.
+   * 
+   * @param ownerId the id of the owner of the feed
+   * @param query the query of the stream items of the feed
+   * @param fingerprint the fingerprint of the audience the query was built with
+   */
+  private void rebuildFeed(String ownerId, BasicDBObject query, int fingerprint) {
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
+    DBCollection feedCol = CollectionName.FEED_COLLECTION.getCollection(this.abstractMongoStorage);
+    long startTime = System.currentTimeMillis();
+    long since = 0;
+    if (mongoStorage.getFeedRebuildDays() > 0) {
+      since = startTime - TimeUnit.DAYS.toMillis(mongoStorage.getFeedRebuildDays());
+      BasicDBObject timer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gte", since));
+      query = new BasicDBObject("$and", new BasicDBObject[] {query, timer});
+    }
+    //
+    BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
+    List<BasicDBObject> queries = new ArrayList<BasicDBObject>();
+    List<BasicDBObject> updates = new ArrayList<BasicDBObject>();
+    BulkWriteOperation bulk = null;
+    for (DBObject row : aggregateActivities(streamCol, query, sortObj, 0, -1, ReadPreference.primary())) {
+      if (bulk == null) {
+        bulk = feedCol.initializeUnorderedBulkOperation();
+      }
+      BasicDBObject feedItem = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), ownerId);
+      feedItem.append(FeedItemMongoEntity.activityId.getName(), row.get("_id"));
+      BasicDBObject update = new BasicDBObject("$max", new BasicDBObject(FeedItemMongoEntity.time.getName(), row.get(StreamItemMongoEntity.time.getName())));
+      BasicDBObject set = new BasicDBObject(FeedItemMongoEntity.hiable.getName(), false);
+      set.append(FeedItemMongoEntity.rebuiltAt.getName(), startTime);
+      update.append("$set", set);
+      bulk.find(feedItem).upsert().update(update);
+      queries.add(feedItem);
+      updates.add(update);
+    }
+    if (bulk != null) {
+      try {
+        bulk.execute();
+      } catch (BulkWriteException e) {
+        for (BulkWriteError error : e.getWriteErrors()) {
+          if (error.getCode() != 11000 && error.getCode() != 11001) {
+            throw e;
+          }
+        }
+        //the activities pushed to the feed during the rebuild inserted some feed items first, they are updated now
+        for (BulkWriteError error : e.getWriteErrors()) {
+          feedCol.update(queries.get(error.getIndex()), updates.get(error.getIndex()), true, false);
+        }
+      }
+    }
+    //the activities which left the feed are not stamped by this rebuild, the feed items pushed or moved up since
+    //the rebuild started are newer
+    BasicDBObject left = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), ownerId);
+    left.append(FeedItemMongoEntity.time.getName(), new BasicDBObject("$gte", since).append("$lt", startTime));
+    left.append(FeedItemMongoEntity.rebuiltAt.getName(), new BasicDBObject("$not", new BasicDBObject("$gte", startTime)));
+    WriteResult removed = feedCol.remove(left);
+    //
+    DBCollection stateCol = CollectionName.FEED_STATE_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject set = new BasicDBObject(FeedItemMongoEntity.audience.getName(), fingerprint);
+    stateCol.update(new BasicDBObject(FeedItemMongoEntity.id.getName(), ownerId), new BasicDBObject("$set", set), true, false);
+    LOG.debug(String.format("Feed of %s built with %d activities, %d removed", ownerId, queries.size(), removed.getN()));
+  }
+  
+  BasicDBObject buildQueryForActivityFeed(Identity ownerIdentity, BasicDBObject timer) {
+    StreamAudience audience = getAudience(ownerIdentity);
+    //Filter by relationship
+    BasicDBObject byRelationships = new BasicDBObject("$and", new BasicDBObject[] { 
+        new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", audience.getConnectionIds())),
+        new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getConnectionRemoteIds()))});
+    //
     BasicDBObject byViewer = new BasicDBObject(StreamItemMongoEntity.viewerId.getName(), ownerIdentity.getId());
     //
     BasicDBObject byPoster = new BasicDBObject(StreamItemMongoEntity.poster.getName(), ownerIdentity.getId());
-    //get spaces where user is member
-    List<Space> spaces = spaceStorage.getMemberSpaces(ownerIdentity.getRemoteId());
-    String[] spaceIds = new String[0];
-    for (Space space : spaces) {
-      spaceIds = (String[]) ArrayUtils.add(spaceIds, space.getPrettyName());
+    //spaces where user is member
+    BasicDBObject bySpaces = new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getSpacePrettyNames()));
+    //
+    return withTimerAndNotHidden(new BasicDBObject("$or", new BasicDBObject[]{ byViewer, byPoster, bySpaces, byRelationships }), timer);
+  }
+  
+  /**
+   * Gets the branches of the activity feed query, each one can be queried with its own index.
+   * The branches which can't match anything are left out.
+   */
+  List<BasicDBObject> buildQueryBranchesForActivityFeed(Identity ownerIdentity, StreamAudience audience) {
+    List<BasicDBObject> branches = new ArrayList<BasicDBObject>(4);
+    branches.add(new BasicDBObject(StreamItemMongoEntity.viewerId.getName(), ownerIdentity.getId()));
+    branches.add(new BasicDBObject(StreamItemMongoEntity.poster.getName(), ownerIdentity.getId()));
+    if (audience.getSpacePrettyNames().length > 0) {
+      branches.add(new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getSpacePrettyNames())));
+    }
+    if (audience.getConnectionIds().length > 0) {
+      BasicDBObject byRelationships = new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", audience.getConnectionIds()));
+      byRelationships.append(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getConnectionRemoteIds()));
+      branches.add(byRelationships);
     }
-    BasicDBObject bySpaces = new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", spaceIds));
+    return branches;
+  }
+  
+  /**
+   * Adds to a stream query the time condition, if any, and the condition leaving out the hidden activities.
+   */
+  static BasicDBObject withTimerAndNotHidden(BasicDBObject condition, BasicDBObject timer) {
+    //Doesn't include hidden activities
+    BasicDBObject isHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
     //Filter by posted time if need
+    BasicDBObject query = new BasicDBObject();
     if (timer != null) {
-      query.append("$and", new BasicDBObject[] {timer, isHidden, new BasicDBObject("$or", new BasicDBObject[]{ byViewer, byPoster, bySpaces, byRelationships })});
+      query.append("$and", new BasicDBObject[] {timer, isHidden, condition});
     } else {
-      query.append("$and", new BasicDBObject[] {isHidden, new BasicDBObject("$or", new BasicDBObject[]{ byViewer, byPoster, bySpaces, byRelationships })});
+      query.append("$and", new BasicDBObject[] {isHidden, condition});
     }
-    
     return query;
   }
   
   private List<ExoSocialActivity> getActivityFeedByTime(Identity ownerIdentity, BasicDBObject timer, int offset, int limit) {
-     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-     //
-     BasicDBObject query = buildQueryForActivityFeed(ownerIdentity, timer);
-     //Sort the list of activities by posted time
-     BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
-     //
-     return getListActivities(streamCol, query, sortObj, offset, limit);
-   }
+    return getActivityFeedByTime(ownerIdentity, timer, offset, limit, null);
+  }
+  
+  /**
+   * @param readPreference the read preference, <code>null</code> for the one of the collection
+   */
+  private List<ExoSocialActivity> getActivityFeedByTime(Identity ownerIdentity, BasicDBObject timer, int offset, int limit, ReadPreference readPreference) {
+    List<StreamQuery> sources = buildFeedQueries(ownerIdentity, timer, true);
+    if (readPreference == null) {
+      readPreference = sources.get(0).getCollection().getReadPreference();
+    }
+    //Sort the list of activities by posted time
+    BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
+    //
+    return getListActivities(sources, sortObj, offset, limit, readPreference);
+  }
 
   @Override
   public List<ExoSocialActivity> getNewerOnActivityFeed(Identity ownerIdentity, ExoSocialActivity baseActivity, int limit) {
@@ -1163,19 +2487,13 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return getOlderFeedActivities(ownerIdentity, baseActivity.getPostedTime(), limit);
   }
   
-  private BasicDBObject buildQueryForActivityOfConnections(Identity ownerIdentity, BasicDBObject timer) {
+  BasicDBObject buildQueryForActivityOfConnections(Identity ownerIdentity, BasicDBObject timer) {
     BasicDBObject query = new BasicDBObject();
     //Filter by relationship
-    List<Identity> relationships = relationshipStorage.getConnections(ownerIdentity);
-    Set<String> relationshipIds = new HashSet<String>();
-    Set<String> relationshipRemoteIds = new HashSet<String>();
-    for (Identity identity : relationships) {
-      relationshipIds.add(identity.getId());
-      relationshipRemoteIds.add(identity.getRemoteId());
-    }
+    StreamAudience audience = getAudience(ownerIdentity);
     BasicDBObject byRelationships = new BasicDBObject("$and", new BasicDBObject[] { 
-        new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", relationshipIds)),
-        new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", relationshipRemoteIds))});
+        new BasicDBObject(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$in", audience.getConnectionIds())),
+        new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getConnectionRemoteIds()))});
     
     BasicDBObject isHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
     //Filter by posted time if need
@@ -1215,7 +2533,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = buildQueryForActivityOfConnections(ownerIdentity, null);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
   }
 
   @Override
@@ -1251,7 +2569,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public List<ExoSocialActivity> getUserSpacesActivitiesForUpgrade(Identity ownerIdentity, int offset, int limit) {
-    DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     
     BasicDBObject query = getUserSpaceActivitiesDBCursor(ownerIdentity, null);
     //sort by time DESC
@@ -1260,16 +2578,12 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return getListActivities(streamCol, query, sortObj, offset, limit);
   }
   
-  private BasicDBObject getUserSpaceActivitiesDBCursor(Identity ownerIdentity, BasicDBObject timer) {
+  BasicDBObject getUserSpaceActivitiesDBCursor(Identity ownerIdentity, BasicDBObject timer) {
     //
-    List<Space> spaces = spaceStorage.getMemberSpaces(ownerIdentity.getRemoteId());
-    String[] spaceIds = new String[0];
-    for (Space space : spaces) {
-      spaceIds = (String[]) ArrayUtils.add(spaceIds, space.getPrettyName());
-    }
+    StreamAudience audience = getAudience(ownerIdentity);
     BasicDBObject query = new BasicDBObject();
     BasicDBObject isHidden = new BasicDBObject(StreamItemMongoEntity.hiable.getName(), false);
-    BasicDBObject space = new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", spaceIds));
+    BasicDBObject space = new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", audience.getSpacePrettyNames()));
     //Filter by posted time if need
     if (timer != null) {
       query.append("$and", new BasicDBObject[] {timer, isHidden, space });
@@ -1287,9 +2601,9 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public int getNumberOfUserSpacesActivitiesForUpgrade(Identity ownerIdentity) {
-    DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = getUserSpaceActivitiesDBCursor(ownerIdentity, null);
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
   }
 
   @Override
@@ -1314,7 +2628,41 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public List<ExoSocialActivity> getComments(ExoSocialActivity existingActivity, int offset, int limit) {
-    return getComments(existingActivity, null, offset, limit);
+    List<ExoSocialActivity> comments = getCommentsFromPreview(existingActivity, offset, limit);
+    return comments != null ? comments : getComments(existingActivity, null, offset, limit);
+  }
+  
+  /**
+   * Gets the comments from the latest comments embedded in the activity, so the feeds render
+   * the last comments of their activities without reading the comment collection.
+   * 
+   * @return the comments or <code>null</code> if some of them are not embedded
+   */
+  private List<ExoSocialActivity> getCommentsFromPreview(ExoSocialActivity existingActivity, int offset, int limit) {
+    int previewSize = mongoStorage.getCommentPreviewSize();
+    if (previewSize <= 0 || limit <= 0 || existingActivity.getId() == null) {
+      return null;
+    }
+    ActivityDocument document = findDocument(CollectionName.ACTIVITY_COLLECTION, existingActivity.getId());
+    if (document == null || !document.hasCommentPreview(previewSize)) {
+      return null;
+    }
+    ActivityDocument[] latestComments = document.getLatestComments();
+    int total = document.getNumberOfComments();
+    int first = total - latestComments.length;
+    if (offset < first) {
+      return null;
+    }
+    List<ExoSocialActivity> result = new ArrayList<ExoSocialActivity>();
+    for (int i = offset; i < Math.min(offset + limit, total); i++) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      fillActivity(comment, latestComments[i - first]);
+      comment.isComment(true);
+      comment.setParentId(existingActivity.getId());
+      processActivity(comment);
+      result.add(comment);
+    }
+    return result;
   }
   
   private List<ExoSocialActivity> getComments(ExoSocialActivity existingActivity, BasicDBObject timer, int offset, int limit) {
@@ -1328,16 +2676,16 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
       query = byActivity;
     }
     //
-    DBCursor cur = activityColl.find(query).skip((int) offset).limit((int)limit);;
+    DBCursor cur = activityColl.find(query).skip((int) offset).limit((int)limit).setDecoderFactory(ActivityDecoder.FACTORY);
     List<ExoSocialActivity> result = new ArrayList<ExoSocialActivity>();
     while (cur.hasNext()) {
-      BasicDBObject entity = (BasicDBObject) cur.next();
-      String commentId = entity.getString(ActivityMongoEntity.id.getName());
+      ActivityDocument document = (ActivityDocument) cur.next();
+      String commentId = document.getId();
       ExoSocialActivity comment = getStorage().getComment(commentId);
       if (comment == null) {
         comment = new ExoSocialActivityImpl();
       }
-      fillActivity(comment, entity);
+      fillActivity(comment, document);
       comment.isComment(true);
       
       processActivity(comment);
@@ -1350,9 +2698,20 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public int getNumberOfComments(ExoSocialActivity existingActivity) {
-    DBCollection activityColl = CollectionName.COMMENT_COLLECTION.getCollection(this.abstractMongoStorage);
-    BasicDBObject query = new BasicDBObject(CommentMongoEntity.activityId.getName(), existingActivity.getId());
-    return activityColl.find(query).size();
+    DBCollection activityColl = CollectionName.ACTIVITY_COLLECTION.getCollection(this.abstractMongoStorage);
+    BasicDBObject activityEntity = (BasicDBObject) activityColl.findOne(new BasicDBObject(ActivityMongoEntity.id.getName(), new ObjectId(existingActivity.getId())),
+                                                                       new BasicDBObject(ActivityMongoEntity.commentCount.getName(), 1));
+    if (activityEntity == null) {
+      return 0;
+    }
+    if (activityEntity.containsField(ActivityMongoEntity.commentCount.getName())) {
+      return activityEntity.getInt(ActivityMongoEntity.commentCount.getName());
+    }
+    //activities saved before the counter existed, the counter is initialized by their next comment
+    activityEntity = (BasicDBObject) activityColl.findOne(new BasicDBObject(ActivityMongoEntity.id.getName(), new ObjectId(existingActivity.getId())),
+                                                          new BasicDBObject(ActivityMongoEntity.commentIds.getName(), 1));
+    BasicBSONList commentIds = activityEntity != null ? (BasicBSONList) activityEntity.get(ActivityMongoEntity.commentIds.getName()) : null;
+    return commentIds != null ? commentIds.size() : 0;
   }
 
   @Override
@@ -1403,12 +2762,10 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
 	@Override
   public int getNumberOfNewerOnActivityFeed(Identity ownerIdentity, Long sinceTime) {
-	  DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-	  //
     BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
-    BasicDBObject query = buildQueryForActivityFeed(ownerIdentity, newer);
+    List<StreamQuery> sources = buildFeedQueries(ownerIdentity, newer);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(sources, routedRead(sources.get(0).getCollection(), ownerIdentity));
 	}
 
 	@Override
@@ -1418,7 +2775,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 	  BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
     BasicDBObject query = buildQueryForUserActivities(ownerIdentity, newer);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
 	}
 
 	@Override
@@ -1428,17 +2785,17 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
     BasicDBObject query = buildQueryForActivityOfConnections(ownerIdentity, newer);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
 	}
 
 	@Override
 	public int getNumberOfNewerOnUserSpacesActivities(Identity ownerIdentity, Long sinceTime) {
-	  DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+	  DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
     BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
     BasicDBObject query = getUserSpaceActivitiesDBCursor(ownerIdentity, newer);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
 	}
 
   @Override
@@ -1461,7 +2818,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = buildQueryForSpaceActivities(spaceIdentity, null);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, spaceIdentity));
   }
 
   @Override
@@ -1469,7 +2826,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     return getSpaceActivitiesForUpgrade(spaceIdentity, index, limit);
   }
   
-  private BasicDBObject buildQueryForSpaceActivities(Identity spaceIdentity, BasicDBObject timer) {
+  BasicDBObject buildQueryForSpaceActivities(Identity spaceIdentity, BasicDBObject timer) {
     BasicDBObject query = new BasicDBObject();
     //
     BasicDBObject space = new BasicDBObject(StreamItemMongoEntity.owner.getName(), spaceIdentity.getRemoteId());
@@ -1527,7 +2884,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
         new BasicDBObject(StreamItemMongoEntity.viewerId.getName(), new BasicDBObject("$in", identityIds)),
         new BasicDBObject(StreamItemMongoEntity.owner.getName(), new BasicDBObject("$in", remoteIds))});
     query.append("$and", new BasicDBObject[] {isHidden, viewerObject});
-    return connectionColl.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(connectionColl, query, routedRead(connectionColl, ownerIdentity));
   }
 
   @Override
@@ -1557,7 +2914,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
     BasicDBObject query = buildQueryForSpaceActivities(spaceIdentity, newer);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, spaceIdentity));
   }
 
   @Override
@@ -1611,7 +2968,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   @Override
   public List<ExoSocialActivity> getNewerUserSpacesActivities(Identity owner, Long sinceTime, int limit) {
-    DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
     BasicDBObject newer = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$gt", sinceTime));
     BasicDBObject query = getUserSpaceActivitiesDBCursor(owner, newer);
@@ -1647,8 +3004,9 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   @Override
   public List<ExoSocialActivity> getOlderFeedActivities(Identity owner, Long sinceTime, int limit) {
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
-    return getActivityFeedByTime(owner, older, 0, limit);
+    return getActivityFeedByTime(owner, older, 0, limit, routedRead(streamCol, owner));
   }
 
   @Override
@@ -1660,19 +3018,19 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     //Sort the list of activities by posted time
     BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
     //
-    return getListActivities(streamCol, query, sortObj, 0, limit);
+    return getListActivities(streamCol, query, sortObj, 0, limit, routedRead(streamCol, owner));
   }
 
   @Override
   public List<ExoSocialActivity> getOlderUserSpacesActivities(Identity owner, Long sinceTime, int limit) {
-    DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
     BasicDBObject query = getUserSpaceActivitiesDBCursor(owner, older);
     //sort by time DESC
     BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
     //
-    return getListActivities(streamCol, query, sortObj, 0, limit);
+    return getListActivities(streamCol, query, sortObj, 0, limit, routedRead(streamCol, owner));
   }
 
   @Override
@@ -1683,7 +3041,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject query = buildQueryForActivityOfConnections(owner, older);
     BasicDBObject sortObj = new BasicDBObject("time", -1);
     //
-    return getListActivities(streamCol, query, sortObj, 0, (int) limit);
+    return getListActivities(streamCol, query, sortObj, 0, (int) limit, routedRead(streamCol, owner));
   }
 
   @Override
@@ -1695,17 +3053,15 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     //sort by time DESC
     BasicDBObject sortObj = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
     
-    return getListActivities(connectionColl, query, sortObj, 0, limit);
+    return getListActivities(connectionColl, query, sortObj, 0, limit, routedRead(connectionColl, spaceIdentity));
   }
 
   @Override
   public int getNumberOfOlderOnActivityFeed(Identity ownerIdentity, Long sinceTime) {
-    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-    //
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
-    BasicDBObject query = buildQueryForActivityFeed(ownerIdentity, older);
+    List<StreamQuery> sources = buildFeedQueries(ownerIdentity, older);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(sources, routedRead(sources.get(0).getCollection(), ownerIdentity));
   }
 
   @Override
@@ -1715,7 +3071,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
     BasicDBObject query = buildQueryForUserActivities(ownerIdentity, older);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
   }
 
   @Override
@@ -1725,17 +3081,17 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
     BasicDBObject query = buildQueryForActivityOfConnections(ownerIdentity, older);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
   }
 
   @Override
   public int getNumberOfOlderOnUserSpacesActivities(Identity ownerIdentity, Long sinceTime) {
-    DBCollection streamCol = abstractMongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION.collectionName());
+    DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     //
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
     BasicDBObject query = getUserSpaceActivitiesDBCursor(ownerIdentity, older);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, ownerIdentity));
   }
 
   @Override
@@ -1745,7 +3101,7 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     BasicDBObject older = new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", sinceTime));
     BasicDBObject query = buildQueryForSpaceActivities(spaceIdentity, older);
     //
-    return streamCol.distinct(StreamItemMongoEntity.activityId.getName(), query).size();
+    return countActivities(streamCol, query, routedRead(streamCol, spaceIdentity));
   }
 
   @Override
@@ -1790,23 +3146,47 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
 
   public ExoSocialActivity getComment(String commentId) throws ActivityStorageException {
     //
-    DBCollection collection = CollectionName.COMMENT_COLLECTION.getCollection(this.abstractMongoStorage);
-    BasicDBObject query = new BasicDBObject();
-    query.append("_id", new ObjectId(commentId));
-    
-    BasicDBObject entity = (BasicDBObject) collection.findOne(query);
+    ActivityDocument document = findDocument(CollectionName.COMMENT_COLLECTION, commentId);
     
     ExoSocialActivity activity = new ExoSocialActivityImpl();
     
-    fillActivity(activity, entity);
+    fillActivity(activity, document);
     activity.isComment(true);
-    activity.setParentId(entity.getString(CommentMongoEntity.activityId.getName()));
+    activity.setParentId(document.getActivityId());
     
     processActivity(activity);
     
     return activity;
   }
   
+  /**
+   * Finds the document of an activity or a comment, from the activity cache when it is there.
+   * The writes remove the documents they change from the cache. It is read from the primary
+   * to be cached.
+   * 
+   * @param collectionName the activity or the comment collection
+   * @param id the id of the activity or the comment
+   * @return the document or null if it does not exist
+   */
+  private ActivityDocument findDocument(CollectionName collectionName, String id) {
+    ActivityDocument document = cacheService.getActivityCache().get(id);
+    if (document == null) {
+      long stamp = cacheService.getActivityStamp(id);
+      DBCollection collection = collectionName.getCollection(this.abstractMongoStorage);
+      DBCursor cur = collection.find(new BasicDBObject("_id", new ObjectId(id))).setReadPreference(ReadPreference.primary())
+                               .setDecoderFactory(ActivityDecoder.FACTORY).limit(-1);
+      try {
+        if (cur.hasNext()) {
+          document = (ActivityDocument) cur.next();
+          cacheService.putActivity(id, document, stamp);
+        }
+      } finally {
+        cur.close();
+      }
+    }
+    return document;
+  }
+  
   private void processActivity(ExoSocialActivity existingActivity) {
     Iterator<ActivityProcessor> it = activityProcessors.iterator();
     while (it.hasNext()) {
@@ -1829,34 +3209,14 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
   private void like(ExoSocialActivity activity, String userId) throws ActivityStorageException {
     //
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
-    BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
-    query.append(StreamItemMongoEntity.viewerId.getName(), userId);
-    
-    String likeType = ViewerType.LIKER.name();
     Identity poster = new Identity(activity.getPosterId());
     poster.setRemoteId(activity.getStreamOwner());
-    
-    BasicDBObject o = (BasicDBObject) streamCol.findOne(query);
-    if (o == null) {
-      //create new stream item for LIKER
-      o = StreamViewType.LIKER.append(new BasicDBObject());
-      fillStreamItem(poster, activity, o);
-      o.append(StreamItemMongoEntity.viewerId.getName(), userId);
-      o.append(StreamItemMongoEntity.time.getName(), activity.getUpdated().getTime());
-      streamCol.insert(o);
-    } else {
-      //update LIKER
-      BasicDBObject update = new BasicDBObject();
-      BasicBSONList viewTypes = (BasicBSONList) o.get(StreamItemMongoEntity.viewerTypes.getName());
-      if (ArrayUtils.contains(viewTypes.toArray(new String[0]), likeType)) {
-        update.append(StreamItemMongoEntity.time.getName(), activity.getUpdated().getTime());
-      } else {
-        update.append(StreamItemMongoEntity.viewerTypes.getName(), ArrayUtils.add(viewTypes.toArray(new String[0]), likeType));
-        update.append(StreamItemMongoEntity.time.getName(), activity.getUpdated().getTime());
-      }
-      //do update
-      streamCol.update(new BasicDBObject("_id",  new ObjectId(o.getString("_id"))), new BasicDBObject("$set", update));
+    //
+    upsertStreamItem(streamCol, poster, activity, userId, ViewerType.LIKER, activity.getUpdated().getTime());
+    if (isFeedPushMode()) {
+      pushToFeeds(activity.getId(), Collections.singleton(userId), activity.getUpdated().getTime(), activity.isHidden());
     }
+    mongoStorage.getReadRouter().wrote(userId);
   }
   
   private void unLike(ExoSocialActivity activity, String userId) throws ActivityStorageException {
@@ -1864,99 +3224,31 @@ public class ActivityMongoStorageImpl extends ActivityStorageImpl {
     DBCollection streamCol = CollectionName.STREAM_ITEM_COLLECTION.getCollection(this.abstractMongoStorage);
     BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
     query.append(StreamItemMongoEntity.viewerId.getName(), userId);
-    
-    String likeType = ViewerType.LIKER.name();
-    BasicDBObject o = (BasicDBObject) streamCol.findOne(query);
-    if (o != null) {
-      //update LIKER
-      BasicDBObject update = new BasicDBObject();
-      BasicBSONList viewTypes = (BasicBSONList) o.get(StreamItemMongoEntity.viewerTypes.getName());
-      String posterId = o.getString(StreamItemMongoEntity.poster.getName());
-      boolean removeable = userId.equals(posterId) ? false : true ;
-      
-      String[] oldViewTypes = viewTypes.toArray(new String[0]);
-      String[] newViewTypes = (String[]) ArrayUtils.removeElement(oldViewTypes, likeType);
-      //
-      if (newViewTypes.length == 0 && removeable) {
-        streamCol.remove(o);
-        return;
-      }
-      //
-      update.append(StreamItemMongoEntity.viewerTypes.getName(), newViewTypes);
-      //do update
-      streamCol.update(new BasicDBObject("_id",  new ObjectId(o.getString("_id"))), new BasicDBObject("$set", update));
-    }
-  }
-
-  private String[] processMentions(String[] mentionerIds, String title, List<String> addedOrRemovedIds, boolean isAdded) {
-    if (title == null || title.length() == 0) {
-      return ArrayUtils.EMPTY_STRING_ARRAY;
-    }
-    
-    Matcher matcher = MENTION_PATTERN.matcher(title);
-    while (matcher.find()) {
-      String remoteId = matcher.group().substring(1);
-      if (!USER_NAME_VALIDATOR_REGEX.matcher(remoteId).matches()) {
-        continue;
-      }
-      Identity identity = identityStorage.findIdentity(OrganizationIdentityProvider.NAME, remoteId);
-      // if not the right mention then ignore
-      if (identity != null) { 
-        String mentionStr = identity.getId() + MENTION_CHAR; // identityId@
-        mentionerIds = isAdded ? add(mentionerIds, mentionStr, addedOrRemovedIds) : remove(mentionerIds, mentionStr, addedOrRemovedIds);
-      }
-    }
-    return mentionerIds;
-  }
-  
-  private String[] processCommenters(String[] commenters, String commenter, List<String> addedOrRemovedIds, boolean isAdded) {
-    if (commenter == null || commenter.length() == 0) {
-      return ArrayUtils.EMPTY_STRING_ARRAY;
+    //
+    BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject(StreamItemMongoEntity.viewerTypes.getName(), ViewerType.LIKER.name()));
+    streamCol.update(query, update);
+    //the stream item of the poster is kept
+    query.append(StreamItemMongoEntity.viewerTypes.getName(), new BasicDBObject("$size", 0));
+    query.append(StreamItemMongoEntity.poster.getName(), new BasicDBObject("$ne", userId));
+    streamCol.remove(query);
+    if (isFeedPushMode()) {
+      refreshFeedItem(userId, activity.getId());
     }
-    
-    String newCommenter = commenter + MENTION_CHAR; 
-    commenters = isAdded ? add(commenters, newCommenter, addedOrRemovedIds) : remove(commenters, newCommenter, addedOrRemovedIds);
-    
-    return commenters;
+    mongoStorage.getReadRouter().wrote(userId);
   }
   
-  private String[] add(String[] mentionerIds, String mentionStr, List<String> addedOrRemovedIds) {
-    if (ArrayUtils.toString(mentionerIds).indexOf(mentionStr) == -1) { // the first mention
-      addedOrRemovedIds.add(mentionStr.replace(MENTION_CHAR, ""));
-      return (String[]) ArrayUtils.add(mentionerIds, mentionStr + 1);
-    }
-    
-    String storedId = null;
-    for (String mentionerId : mentionerIds) {
-      if (mentionerId.indexOf(mentionStr) != -1) {
-        mentionerIds = (String[]) ArrayUtils.removeElement(mentionerIds, mentionerId);
-        storedId = mentionStr + (Integer.parseInt(mentionerId.split(MENTION_CHAR)[1]) + 1);
-        break;
-      }
+  /**
+   * Adds the ids which are missing to an array of ids.
+   */
+  private static String[] addAll(String[] ids, String[] added) {
+    Set<String> all = new LinkedHashSet<String>();
+    if (ids != null) {
+      all.addAll(Arrays.asList(ids));
     }
-    
-
-    addedOrRemovedIds.add(mentionStr.replace(MENTION_CHAR, ""));
-    mentionerIds = (String[]) ArrayUtils.add(mentionerIds, storedId);
-    return mentionerIds;
-  }
-
-  private String[] remove(String[] mentionerIds, String mentionStr, List<String> addedOrRemovedIds) {
-    for (String mentionerId : mentionerIds) {
-      if (mentionerId.indexOf(mentionStr) != -1) {
-        int numStored = Integer.parseInt(mentionerId.split(MENTION_CHAR)[1]) - 1;
-        
-        if (numStored == 0) {
-          addedOrRemovedIds.add(mentionStr.replace(MENTION_CHAR, ""));
-          return (String[]) ArrayUtils.removeElement(mentionerIds, mentionerId);
-        }
-
-        mentionerIds = (String[]) ArrayUtils.removeElement(mentionerIds, mentionerId);
-        mentionerIds = (String[]) ArrayUtils.add(mentionerIds, mentionStr + numStored);
-        break;
-      }
+    if (added != null) {
+      all.addAll(Arrays.asList(added));
     }
-    return mentionerIds;
+    return all.toArray(new String[all.size()]);
   }
   
 }
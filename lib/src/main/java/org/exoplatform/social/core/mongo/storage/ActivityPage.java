@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.List;
+
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+
+/**
+ * A page of activities loaded from a stream, with the cursor to load the next page.
+ *
+ * The cursor is an opaque token, it must be given back as is to get the following activities.
+ * A page holds as many activities as the limit, even when it is read from several sources showing
+ * the same activities, only the last page may hold fewer.
+ */
+public class ActivityPage {
+
+  /** . */
+  private final List<ExoSocialActivity> activities;
+
+  /** . */
+  private final String nextCursor;
+
+  public ActivityPage(List<ExoSocialActivity> activities, String nextCursor) {
+    this.activities = activities;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * Gets the activities of this page, the most recent first.
+   * @return
+   */
+  public List<ExoSocialActivity> getActivities() {
+    return activities;
+  }
+
+  /**
+   * Gets the cursor to load the next page.
+   * @return the cursor or <code>null</code> if there is no more activity
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * Tells if there may be more activities after this page.
+   * @return
+   */
+  public boolean hasNext() {
+    return nextCursor != null;
+  }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+/**
+ * The way the activity feed of a user is built.
+ */
+public enum FeedMode {
+
+  /** The feed is computed at read time from the stream items. */
+  PULL,
+
+  /** The feed is written at write time in a collection of feed items, one by viewer and activity. */
+  PUSH;
+
+  /**
+   * Gets the feed mode with the specified name, case insensitive.
+   *
+   * @param name the name, <code>null</code> for the default mode
+   * @return the feed mode
+   */
+  public static FeedMode fromName(String name) {
+    return name != null ? valueOf(name.toUpperCase()) : PULL;
+  }
+
+}
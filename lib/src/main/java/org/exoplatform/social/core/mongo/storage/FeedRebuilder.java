@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+/**
+ * Rebuilds the activity feeds of the PUSH mode in the background, one feed at a time, so that
+ * the reads never wait for a rebuild.
+ *
+ * A feed is queued once until its rebuild is done. When the queue is full the rebuild is dropped,
+ * the next read of the feed queues it again.
+ */
+public class FeedRebuilder {
+
+  /** . */
+  private static final Log LOG = ExoLogger.getLogger(FeedRebuilder.class);
+
+  /** Number of feeds waiting for their rebuild. */
+  private static final int QUEUE_SIZE = 1000;
+
+  /** . */
+  private final ThreadPoolExecutor pool;
+
+  /** The ids of the owners of the feeds queued or being rebuilt. */
+  private final Set<String> queued = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  public FeedRebuilder() {
+    this.pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                       new RebuildThreadFactory());
+    this.pool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues the rebuild of a feed, unless it is already queued.
+   *
+   * @param ownerId the id of the owner of the feed
+   * @param rebuild the rebuild, it must not need the container of the calling thread
+   */
+  public void submit(final String ownerId, final Runnable rebuild) {
+    if (!queued.add(ownerId)) {
+      return;
+    }
+    try {
+      pool.execute(new Runnable() {
+        public void run() {
+          try {
+            rebuild.run();
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to rebuild the feed of " + ownerId, e);
+          } finally {
+            queued.remove(ownerId);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queued.remove(ownerId);
+      LOG.debug("Too many feeds to rebuild, the feed of " + ownerId + " is rebuilt later");
+    }
+  }
+
+  /**
+   * Stops the rebuilds, the feeds not rebuilt are queued again on their next read.
+   */
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  private static class RebuildThreadFactory implements ThreadFactory {
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "mongo-feed-rebuild");
+      thread.setDaemon(true);
+      return thread;
+    }
+
+  }
+
+}
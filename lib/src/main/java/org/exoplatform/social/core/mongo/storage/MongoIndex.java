@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.List;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * The declaration of an index of a collection, created if missing when the collection is first used.
+ *
+ * The indexes get the default name given by MongoDB to their keys, so that the indexes created
+ * before by an earlier version are found as they are. They are built in background so that the
+ * existing collections stay available while they are built, and created one by one so that a failing
+ * index doesn't prevent the others. A unique index is the exception: the collection can't be used without it.
+ */
+public class MongoIndex {
+
+  /** . */
+  private static final Log LOG = ExoLogger.getLogger(MongoIndex.class);
+
+  /** . */
+  private final BasicDBObject keys = new BasicDBObject();
+
+  /** . */
+  private boolean unique;
+
+  /** . */
+  private BasicDBObject partialFilter;
+
+  private MongoIndex() {
+  }
+
+  /**
+   * Declares an index, its keys are added in order.
+   *
+   * @return the index
+   */
+  public static MongoIndex index() {
+    return new MongoIndex();
+  }
+
+  public MongoIndex asc(String field) {
+    keys.append(field, 1);
+    return this;
+  }
+
+  public MongoIndex desc(String field) {
+    keys.append(field, -1);
+    return this;
+  }
+
+  /**
+   * Makes the index unique.
+   * @return
+   */
+  public MongoIndex unique() {
+    this.unique = true;
+    return this;
+  }
+
+  /**
+   * Indexes only the documents matching the filter, this needs MongoDB 3.2 or later.
+   * The index is created on all the documents with older versions.
+   *
+   * @see #supportsPartialIndexes(DB)
+   *
+   * @param partialFilter the filter
+   * @return
+   */
+  public MongoIndex partial(BasicDBObject partialFilter) {
+    this.partialFilter = partialFilter;
+    return this;
+  }
+
+  /**
+   * Gets the name of the index, the default name given by MongoDB, e.g. <code>viewerId_1_time_-1</code>.
+   * @return
+   */
+  public String getName() {
+    StringBuilder name = new StringBuilder();
+    for (String field : keys.keySet()) {
+      if (name.length() > 0) {
+        name.append('_');
+      }
+      name.append(field).append('_').append(keys.get(field));
+    }
+    return name.toString();
+  }
+
+  public BasicDBObject getKeys() {
+    return keys;
+  }
+
+  /**
+   * Tells if the collection already has an index with the name of this one.
+   *
+   * @param collection the collection
+   * @return true if the index exists
+   */
+  public boolean exists(DBCollection collection) {
+    String name = getName();
+    for (DBObject index : collection.getIndexInfo()) {
+      if (name.equals(index.get("name"))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates the index if it doesn't exist yet, it does nothing otherwise.
+   *
+   * @param collection the collection
+   * @param partialIndexes true if the server supports the partial indexes
+   * @throws MongoException if a unique index can't be created, the writes relying on it would not be safe
+   */
+  public void ensure(DBCollection collection, boolean partialIndexes) {
+    boolean withPartialFilter = partialFilter != null && partialIndexes;
+    if (partialFilter != null && ! partialIndexes) {
+      LOG.info(String.format("Partial indexes not supported, the index %s of %s covers all the documents", getName(), collection.getName()));
+    }
+    try {
+      collection.ensureIndex(keys, options(withPartialFilter));
+    } catch (MongoException e) {
+      if (unique) {
+        LOG.error(String.format("Failed to create the unique index %s of %s", getName(), collection.getName()), e);
+        throw e;
+      }
+      //e.g. an index of the same name with other options, it is left as is
+      LOG.warn(String.format("Failed to create the index %s of %s", getName(), collection.getName()), e);
+    }
+  }
+
+  /**
+   * Tells if the server supports the partial indexes, from its version: the servers older than 3.2
+   * don't reject the partial filter, they create an index on all the documents instead.
+   *
+   * @param db the database
+   * @return true for MongoDB 3.2 or later
+   */
+  public static boolean supportsPartialIndexes(DB db) {
+    CommandResult buildInfo = db.command("buildInfo");
+    List<?> version = (List<?>) buildInfo.get("versionArray");
+    if (! buildInfo.ok() || version == null || version.size() < 2) {
+      LOG.warn("Unknown MongoDB version, the partial indexes cover all the documents: " + buildInfo.getErrorMessage());
+      return false;
+    }
+    int major = ((Number) version.get(0)).intValue();
+    int minor = ((Number) version.get(1)).intValue();
+    return major > 3 || (major == 3 && minor >= 2);
+  }
+
+  private BasicDBObject options(boolean withPartialFilter) {
+    BasicDBObject options = new BasicDBObject("name", getName()).append("background", true);
+    if (unique) {
+      options.append("unique", true);
+    }
+    if (withPartialFilter) {
+      options.append("partialFilterExpression", partialFilter);
+    }
+    return options;
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+
+/**
+ * Runs the data migrations once for all the nodes sharing a database.
+ *
+ * Each migration has a document in the migration collection: the node which inserts it runs the migration,
+ * the others skip it. The document is marked done at the end of the migration, and removed when the migration
+ * fails so that it is run again on next start. A migration interrupted by a crash stays running until its
+ * document is removed.
+ */
+final class MongoMigration {
+
+  /** . */
+  private static final Log LOG = ExoLogger.getLogger(MongoMigration.class);
+
+  /** . */
+  static final String STATE = "state";
+
+  /** . */
+  static final String RUNNING = "running";
+
+  /** . */
+  static final String DONE = "done";
+
+  private MongoMigration() {
+  }
+
+  /**
+   * Runs the migration unless it is already done or run by another node.
+   *
+   * @param migrationCol the migration collection
+   * @param id the id of the migration
+   * @param migration the migration
+   * @return true if the migration is done, by this call or before
+   */
+  static boolean runOnce(DBCollection migrationCol, String id, Runnable migration) {
+    BasicDBObject byId = new BasicDBObject("_id", id);
+    try {
+      migrationCol.insert(new BasicDBObject(byId).append(STATE, RUNNING).append("startedAt", System.currentTimeMillis()));
+    } catch (MongoException e) {
+      if (e.getCode() != 11000 && e.getCode() != 11001) {
+        throw e;
+      }
+      DBObject got = migrationCol.findOne(byId, null, ReadPreference.primary());
+      if (got != null && DONE.equals(got.get(STATE))) {
+        return true;
+      }
+      LOG.info(String.format("The migration %s is run by another node, or was interrupted: remove its document from %s to run it again",
+                             id, migrationCol.getFullName()));
+      return false;
+    }
+    //
+    try {
+      migration.run();
+    } catch (RuntimeException e) {
+      migrationCol.remove(byId);
+      LOG.error(String.format("The migration %s failed, it is run again on next start", id), e);
+      return false;
+    }
+    migrationCol.update(byId, new BasicDBObject("$set", new BasicDBObject(STATE, DONE).append("doneAt", System.currentTimeMillis())));
+    return true;
+  }
+
+}
@@ -1,20 +1,59 @@
 package org.exoplatform.social.core.mongo.storage;
 
 import java.lang.reflect.UndeclaredThrowableException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
 import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
 
+import org.exoplatform.container.ExoContainerContext;
 import org.exoplatform.container.xml.InitParams;
 import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.jcr.RepositoryService;
+import org.exoplatform.services.jcr.config.RepositoryEntry;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
 import org.picocontainer.Startable;
 
 public class MongoStorage implements Startable {
 
+  /** . */
+  private static final Log LOG = ExoLogger.getLogger(MongoStorage.class);
+  
+  /** . */
+  private static final String DEFAULT_NAME = "social";
+  
+  /** . */
+  private static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 10000;
+  
+  /** Audience size above which the activities are pulled at read time instead of pushed in PUSH mode. */
+  private static final int DEFAULT_FEED_PUSH_THRESHOLD = 1000;
+  
+  /** Number of days of activities a feed is rebuilt with in PUSH mode. */
+  private static final int DEFAULT_FEED_REBUILD_DAYS = 180;
+  
+  /** Number of threads running the queries of the sources of a stream concurrently. */
+  private static final int DEFAULT_STREAM_QUERY_THREADS = 4;
+  
+  /** Number of latest comments embedded in the activity documents. */
+  private static final int DEFAULT_COMMENT_PREVIEW_SIZE = 3;
+  
   /** . */
   private DB db;
   
+  /** . */
+  private MongoClient mongo;
+  
   /** . */
   private final String host;
 
@@ -23,6 +62,42 @@ public class MongoStorage implements Startable {
   
   private final String name;
   
+  /** The connection URI, when set it is used instead of host, port and seeds. */
+  private final String uri;
+  
+  /** The seed list of the replica set, host:port separated by commas. */
+  private final String seeds;
+  
+  /** . */
+  private final MongoClientOptions.Builder options;
+  
+  /** . */
+  private final ReadRouter readRouter;
+  
+  /** . */
+  private volatile FeedMode feedMode;
+  
+  /** . */
+  private volatile int feedPushThreshold;
+  
+  /** . */
+  private final int feedRebuildDays;
+  
+  /** . */
+  private final FeedRebuilder feedRebuilder = new FeedRebuilder();
+  
+  /** . */
+  private final StreamQueryExecutor streamQueryExecutor;
+  
+  /** . */
+  private final int commentPreviewSize;
+  
+  /** Tells if the server supports the partial indexes, read once from its version. */
+  private volatile Boolean partialIndexes;
+  
+  /** The collections already resolved, by name. */
+  private final ConcurrentMap<String, DBCollection> collections = new ConcurrentHashMap<String, DBCollection>();
+  
   /**
    * Create a mongo store with the specified init params.
    *
@@ -31,24 +106,76 @@ public class MongoStorage implements Startable {
   public MongoStorage(InitParams params) {
 
       //
-      ValueParam hostParam = params.getValueParam("host");
-      ValueParam portParam = params.getValueParam("port");
-      ValueParam nameParam = params.getValueParam("name");
+      String host = getValue(params, "host");
+      String port = getValue(params, "port");
+      String name = getValue(params, "name");
+      String uri = getValue(params, "uri");
       //
-      String host = hostParam != null ? hostParam.getValue().trim() : "localhost";
-      int port = portParam != null ? Integer.parseInt(portParam.getValue().trim()) : 27017;
-      String name = nameParam != null ? nameParam.getValue().trim() : "social";
+      if (name == null && uri != null) {
+        name = new MongoClientURI(uri).getDatabase();
+      }
 
-      this.host = host;
-      this.port = port;
-      this.name = name;
+      this.host = host != null ? host : "localhost";
+      this.port = port != null ? Integer.parseInt(port) : 27017;
+      this.name = name != null ? name : DEFAULT_NAME;
+      this.uri = uri;
+      this.seeds = getValue(params, "seeds");
+      
+      //connection pool, time outs and read preference, the driver defaults are kept when not set
+      this.options = MongoClientOptions.builder();
+      String value = getValue(params, "connectionsPerHost");
+      if (value != null) {
+        options.connectionsPerHost(Integer.parseInt(value));
+      }
+      value = getValue(params, "threadsAllowedToBlockForConnectionMultiplier");
+      if (value != null) {
+        options.threadsAllowedToBlockForConnectionMultiplier(Integer.parseInt(value));
+      }
+      value = getValue(params, "maxWaitTime");
+      if (value != null) {
+        options.maxWaitTime(Integer.parseInt(value));
+      }
+      value = getValue(params, "connectTimeout");
+      if (value != null) {
+        options.connectTimeout(Integer.parseInt(value));
+      }
+      value = getValue(params, "socketTimeout");
+      if (value != null) {
+        options.socketTimeout(Integer.parseInt(value));
+      }
+      value = getValue(params, "readPreference");
+      if (value != null) {
+        options.readPreference(ReadPreference.valueOf(value));
+      }
+      
+      //reads which accept some replication lag, like counters and older pages
+      value = getValue(params, "routedReadPreference");
+      ReadPreference routedReadPreference = value != null ? ReadPreference.valueOf(value) : null;
+      value = getValue(params, "readYourWritesWindow");
+      long window = value != null ? Long.parseLong(value) : DEFAULT_READ_YOUR_WRITES_WINDOW;
+      this.readRouter = new ReadRouter(routedReadPreference, window);
+      
+      //pull or push activity feed
+      this.feedMode = FeedMode.fromName(getValue(params, "feedMode"));
+      value = getValue(params, "feedPushThreshold");
+      this.feedPushThreshold = value != null ? Integer.parseInt(value) : DEFAULT_FEED_PUSH_THRESHOLD;
+      value = getValue(params, "feedRebuildDays");
+      this.feedRebuildDays = value != null ? Integer.parseInt(value) : DEFAULT_FEED_REBUILD_DAYS;
+      
+      //concurrent queries of the activity feed
+      value = getValue(params, "streamQueryThreads");
+      this.streamQueryExecutor = new StreamQueryExecutor(value != null ? Integer.parseInt(value) : DEFAULT_STREAM_QUERY_THREADS);
+      
+      //latest comments embedded in the activities
+      value = getValue(params, "commentPreviewSize");
+      this.commentPreviewSize = value != null ? Integer.parseInt(value) : DEFAULT_COMMENT_PREVIEW_SIZE;
   }
 
   /**
    * Create a mongo store with <code>localhost</code> host and <code>27017</code> port.
    */
   public MongoStorage() {
-      this("localhost", 27017, "social");
+      this("localhost", 27017, DEFAULT_NAME);
   }
   
   /**
@@ -61,18 +188,185 @@ public class MongoStorage implements Startable {
       this.host = host;
       this.port = port;
       this.name = name;
+      this.uri = null;
+      this.seeds = null;
+      this.options = MongoClientOptions.builder();
+      this.readRouter = new ReadRouter(null, DEFAULT_READ_YOUR_WRITES_WINDOW);
+      this.feedMode = FeedMode.PULL;
+      this.feedPushThreshold = DEFAULT_FEED_PUSH_THRESHOLD;
+      this.feedRebuildDays = DEFAULT_FEED_REBUILD_DAYS;
+      this.streamQueryExecutor = new StreamQueryExecutor(DEFAULT_STREAM_QUERY_THREADS);
+      this.commentPreviewSize = DEFAULT_COMMENT_PREVIEW_SIZE;
+  }
+  
+  /**
+   * Gets the trimmed value of the specified param.
+   * 
+   * @return the value or <code>null</code> if the param is missing or empty
+   */
+  private static String getValue(InitParams params, String name) {
+    ValueParam param = params.getValueParam(name);
+    if (param == null || param.getValue() == null) {
+      return null;
+    }
+    String value = param.getValue().trim();
+    return value.length() > 0 ? value : null;
+  }
+  
+  /**
+   * Parses the seed list with the form <code>host1:port1,host2:port2</code>, the port is optional.
+   */
+  private static List<ServerAddress> parseSeeds(String seeds) throws UnknownHostException {
+    List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+    for (String seed : seeds.split(",")) {
+      seed = seed.trim();
+      if (seed.length() == 0) {
+        continue;
+      }
+      int index = seed.lastIndexOf(':');
+      if (index > 0) {
+        addresses.add(new ServerAddress(seed.substring(0, index), Integer.parseInt(seed.substring(index + 1))));
+      } else {
+        addresses.add(new ServerAddress(seed));
+      }
+    }
+    return addresses;
   }
   
   public DB getDB() {
     return db;
   }
+  
+  /**
+   * Gets the router of the reads which accept some replication lag.
+   * @return
+   */
+  public ReadRouter getReadRouter() {
+    return readRouter;
+  }
+  
+  /**
+   * Gets the way the activity feeds are built.
+   * @return
+   */
+  public FeedMode getFeedMode() {
+    return feedMode;
+  }
+  
+  /**
+   * Changes the way the activity feeds are built, the feeds of the PUSH mode are rebuilt on their next read.
+   * The mode is set by the init params, this is used by the tests.
+   * @param feedMode
+   */
+  void setFeedMode(FeedMode feedMode) {
+    this.feedMode = feedMode;
+  }
+  
+  /**
+   * Gets the number of members of a space, or of connections of a poster, above which
+   * the activities are not pushed to the feeds but pulled when the feeds are read.
+   * @return
+   */
+  public int getFeedPushThreshold() {
+    return feedPushThreshold;
+  }
+  
+  /**
+   * Changes the number of members or connections above which the activities are pulled at read time.
+   * The threshold is set by the init params, this is used by the tests.
+   * @param feedPushThreshold
+   */
+  void setFeedPushThreshold(int feedPushThreshold) {
+    this.feedPushThreshold = feedPushThreshold;
+  }
+  
+  /**
+   * Gets the number of days of activities a feed is rebuilt with, 0 to rebuild it with all the activities.
+   * The older activities of a feed are left as they are.
+   * @return
+   */
+  public int getFeedRebuildDays() {
+    return feedRebuildDays;
+  }
+  
+  /**
+   * Gets the background rebuilder of the feeds.
+   * @return
+   */
+  public FeedRebuilder getFeedRebuilder() {
+    return feedRebuilder;
+  }
+  
+  /**
+   * Gets the executor running the queries of the sources of a stream.
+   * @return
+   */
+  public StreamQueryExecutor getStreamQueryExecutor() {
+    return streamQueryExecutor;
+  }
+  
+  /**
+   * Gets the number of latest comments embedded in the activity documents, 0 when they are not embedded.
+   * @return
+   */
+  public int getCommentPreviewSize() {
+    return commentPreviewSize;
+  }
+  
+  /**
+   * Tells if the server supports the partial indexes, the server version is read on first call only.
+   * @return
+   */
+  public boolean supportsPartialIndexes() {
+    if (partialIndexes == null) {
+      partialIndexes = MongoIndex.supportsPartialIndexes(db);
+    }
+    return partialIndexes;
+  }
+  
+  /**
+   * Gets the collection registered with the specified name.
+   * 
+   * @param name the name of collection
+   * @return the collection or <code>null</code> if it is not registered
+   */
+  public DBCollection getRegisteredCollection(String name) {
+    return collections.get(name);
+  }
+  
+  /**
+   * Registers the collection with the specified name, if another thread registered it first,
+   * that one is kept.
+   * 
+   * @param name the name of collection
+   * @param collection the collection
+   * @return the registered collection
+   */
+  public DBCollection registerCollection(String name, DBCollection collection) {
+    DBCollection got = collections.putIfAbsent(name, collection);
+    return got != null ? got : collection;
+  }
+  
+  /**
+   * Forgets all the registered collections, they will be resolved and provisioned again on next use.
+   */
+  public void clearCollections() {
+    collections.clear();
+  }
 
   
   @Override
   public void start() {
     try {
-      MongoClient mongo = new MongoClient(host, port);
+      if (uri != null) {
+        this.mongo = new MongoClient(new MongoClientURI(uri, options));
+      } else if (seeds != null) {
+        this.mongo = new MongoClient(parseSeeds(seeds), options.build());
+      } else {
+        this.mongo = new MongoClient(new ServerAddress(host, port), options.build());
+      }
       this.db = mongo.getDB(name);
+      provisionCollections();
       //DB admin = mongo.getDB("admin");
       //DBObject cmd = new BasicDBObject("shardCollection",new BasicDBObject()
                                        //.append("social.comment", new BasicDBObject("_id", "hashed")));
@@ -84,9 +378,30 @@ public class MongoStorage implements Startable {
     }
   }
 
+  /**
+   * Creates the missing indexes of the collections of all the configured repositories and registers them,
+   * so that no request provisions a collection. The failures are logged by the collections.
+   */
+  private void provisionCollections() {
+    RepositoryService repositoryService = (RepositoryService) ExoContainerContext.getCurrentContainer()
+                                                                                 .getComponentInstanceOfType(RepositoryService.class);
+    if (repositoryService == null) {
+      LOG.warn("No repository service, the collections are provisioned on first use");
+      return;
+    }
+    for (RepositoryEntry repository : repositoryService.getConfig().getRepositoryConfigurations()) {
+      ActivityMongoStorageImpl.CollectionName.provision(this, repository.getName());
+    }
+  }
+
   @Override
   public void stop() {
-    
+    streamQueryExecutor.shutdown();
+    feedRebuilder.shutdown();
+    clearCollections();
+    if (mongo != null) {
+      mongo.close();
+    }
   }
 
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.mongodb.DBCollection;
+import com.mongodb.ReadPreference;
+
+/**
+ * Chooses the read preference of the reads which accept data replicated with some lag,
+ * like the counters and the older pages of streams.
+ *
+ * Those reads go to the configured read preference, usually <code>secondaryPreferred</code>,
+ * except for an identity which wrote recently: its reads stay on the primary during the
+ * configured window so that it always sees its own writes.
+ */
+public class ReadRouter {
+
+  /** Number of tracked identities above which the expired writes are purged. */
+  private static final int PURGE_THRESHOLD = 10000;
+
+  /** The read preference of routed reads, <code>null</code> to keep the default one. */
+  private final ReadPreference readPreference;
+
+  /** The time in milliseconds during which reads stay on the primary after a write. */
+  private final long window;
+
+  /** The time of the last write, by identity id. */
+  private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @param readPreference the read preference of routed reads, <code>null</code> to keep the default one
+   * @param window the time in milliseconds during which reads stay on the primary after a write
+   */
+  public ReadRouter(ReadPreference readPreference, long window) {
+    this.readPreference = readPreference;
+    this.window = window;
+  }
+
+  /**
+   * Records a write done by or for the specified identity.
+   *
+   * @param identityId the identity id
+   */
+  public void wrote(String identityId) {
+    if (readPreference == null || identityId == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    lastWrites.put(identityId, now);
+    //
+    if (lastWrites.size() > PURGE_THRESHOLD) {
+      Iterator<Map.Entry<String, Long>> it = lastWrites.entrySet().iterator();
+      while (it.hasNext()) {
+        if (now - it.next().getValue() >= window) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the read preference to use for a read done for the specified identity.
+   *
+   * @param collection the collection to read
+   * @param identityId the identity id
+   * @return the read preference
+   */
+  public ReadPreference getReadPreference(DBCollection collection, String identityId) {
+    if (readPreference == null) {
+      return collection.getReadPreference();
+    }
+    if (identityId == null) {
+      return readPreference;
+    }
+    //
+    Long lastWrite = lastWrites.get(identityId);
+    if (lastWrite != null) {
+      if (System.currentTimeMillis() - lastWrite < window) {
+        return ReadPreference.primary();
+      }
+      lastWrites.remove(identityId, lastWrite);
+    }
+    return readPreference;
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Merges the stream items of a same viewer of an activity.
+ *
+ * The stream items were inserted without checking before they were upserted, so the self mentions and the
+ * repeated mentions left several stream items for one viewer of an activity. They must be merged once
+ * before the unique index on the activity and the viewer can be built.
+ */
+final class StreamItemDuplicates {
+
+  private StreamItemDuplicates() {
+  }
+
+  /**
+   * Merges each group of stream items with the same activity and viewer into the oldest stream item of
+   * the group: it takes all the viewer types, the sum of the numbers of actions and the most recent time.
+   * The other stream items of the group are removed.
+   *
+   * @param streamCol the stream item collection
+   * @return the number of stream items removed
+   */
+  static int merge(DBCollection streamCol) {
+    String activityId = StreamItemMongoEntity.activityId.getName();
+    String viewerId = StreamItemMongoEntity.viewerId.getName();
+    BasicDBObject key = new BasicDBObject(activityId, "$" + activityId).append(viewerId, "$" + viewerId);
+    BasicDBObject group = new BasicDBObject("_id", key);
+    group.append("ids", new BasicDBObject("$push", "$_id"));
+    group.append("count", new BasicDBObject("$sum", 1));
+    //
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add(new BasicDBObject("$group", group));
+    pipeline.add(new BasicDBObject("$match", new BasicDBObject("count", new BasicDBObject("$gt", 1))));
+    AggregationOptions options = AggregationOptions.builder()
+                                                   .allowDiskUse(true)
+                                                   .outputMode(AggregationOptions.OutputMode.CURSOR)
+                                                   .build();
+    int removed = 0;
+    Cursor cursor = streamCol.aggregate(pipeline, options);
+    try {
+      while (cursor.hasNext()) {
+        removed += mergeGroup(streamCol, (List<?>) cursor.next().get("ids"));
+      }
+    } finally {
+      cursor.close();
+    }
+    return removed;
+  }
+
+  private static int mergeGroup(DBCollection streamCol, List<?> ids) {
+    Set<Object> viewerTypes = new LinkedHashSet<Object>();
+    Map<String, Integer> actionNo = new LinkedHashMap<String, Integer>();
+    long time = 0;
+    Object keptId = null;
+    List<Object> removedIds = new ArrayList<Object>();
+    //
+    DBCursor items = streamCol.find(new BasicDBObject("_id", new BasicDBObject("$in", ids))).sort(new BasicDBObject("_id", 1));
+    try {
+      while (items.hasNext()) {
+        DBObject item = items.next();
+        if (keptId == null) {
+          keptId = item.get("_id");
+        } else {
+          removedIds.add(item.get("_id"));
+        }
+        List<?> types = (List<?>) item.get(StreamItemMongoEntity.viewerTypes.getName());
+        if (types != null) {
+          viewerTypes.addAll(types);
+        }
+        BSONObject actions = (BSONObject) item.get(StreamItemMongoEntity.actionNo.getName());
+        if (actions != null) {
+          for (String type : actions.keySet()) {
+            Integer number = actionNo.get(type);
+            int added = ((Number) actions.get(type)).intValue();
+            actionNo.put(type, number != null ? number + added : added);
+          }
+        }
+        Number itemTime = (Number) item.get(StreamItemMongoEntity.time.getName());
+        if (itemTime != null) {
+          time = Math.max(time, itemTime.longValue());
+        }
+      }
+    } finally {
+      items.close();
+    }
+    if (removedIds.isEmpty()) {
+      return 0;
+    }
+    //
+    BasicDBObject set = new BasicDBObject(StreamItemMongoEntity.time.getName(), time);
+    //the stream items of the space activities have no viewer type
+    if (! viewerTypes.isEmpty()) {
+      set.append(StreamItemMongoEntity.viewerTypes.getName(), new ArrayList<Object>(viewerTypes));
+      set.append(StreamItemMongoEntity.actionNo.getName(), new BasicDBObject(actionNo));
+    }
+    streamCol.update(new BasicDBObject("_id", keptId), new BasicDBObject("$set", set));
+    streamCol.remove(new BasicDBObject("_id", new BasicDBObject("$in", removedIds)));
+    return removedIds.size();
+  }
+
+}
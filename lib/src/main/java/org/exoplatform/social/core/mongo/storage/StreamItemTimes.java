@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Aligns the times of the stream items of each activity.
+ *
+ * The earlier versions only moved the stream item of the commenter or of the mentioned identity to the time
+ * of a comment, the other stream items of the activity kept older times. The pages seek on the time of the
+ * stream items before grouping them by activity, so all the stream items of an activity must have its time.
+ */
+final class StreamItemTimes {
+
+  private StreamItemTimes() {
+  }
+
+  /**
+   * Moves the stream items of each activity up to the most recent time of its stream items.
+   *
+   * @param streamCol the stream item collection
+   * @return the number of activities whose stream items were moved
+   */
+  static int align(DBCollection streamCol) {
+    String activityId = StreamItemMongoEntity.activityId.getName();
+    String time = StreamItemMongoEntity.time.getName();
+    BasicDBObject group = new BasicDBObject("_id", "$" + activityId);
+    group.append("min", new BasicDBObject("$min", "$" + time));
+    group.append("max", new BasicDBObject("$max", "$" + time));
+    BasicDBObject project = new BasicDBObject("max", 1);
+    project.append("aligned", new BasicDBObject("$eq", new Object[] { "$min", "$max" }));
+    //
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add(new BasicDBObject("$project", new BasicDBObject(activityId, 1).append(time, 1)));
+    pipeline.add(new BasicDBObject("$group", group));
+    pipeline.add(new BasicDBObject("$project", project));
+    pipeline.add(new BasicDBObject("$match", new BasicDBObject("aligned", false)));
+    int aligned = 0;
+    Cursor cursor = streamCol.aggregate(pipeline, ActivityMongoStorageImpl.aggregationOptions());
+    try {
+      while (cursor.hasNext()) {
+        DBObject row = cursor.next();
+        streamCol.updateMulti(new BasicDBObject(activityId, row.get("_id")),
+                              new BasicDBObject("$max", new BasicDBObject(time, row.get("max"))));
+        aligned++;
+      }
+    } finally {
+      cursor.close();
+    }
+    return aligned;
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
+
+import com.mongodb.DBObject;
+
+/**
+ * Merges the activity rows read from several sources of a stream.
+ *
+ * Each source gives one row by activity, the activity id as <code>_id</code> and its time as <code>time</code>,
+ * sorted by time then id, the most recent first. The rows are merged in the same order and an activity
+ * found in several sources is kept once, with its most recent time.
+ */
+final class StreamMerger {
+
+  private StreamMerger() {
+  }
+
+  /**
+   * Merges the sorted rows of the sources.
+   *
+   * @param sources the rows of each source, sorted
+   * @param offset the number of merged rows to skip
+   * @param limit the maximum number of merged rows, negative for no limit
+   * @return the merged rows
+   */
+  static List<DBObject> merge(List<List<DBObject>> sources, int offset, int limit) {
+    List<DBObject> rows = new ArrayList<DBObject>(limit > 0 ? limit : 16);
+    if (limit == 0) {
+      return rows;
+    }
+    //the head of each source, the most recent first
+    PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, sources.size()), HEAD_ORDER);
+    for (List<DBObject> source : sources) {
+      Iterator<DBObject> it = source.iterator();
+      if (it.hasNext()) {
+        heads.add(new Head(it.next(), it));
+      }
+    }
+    //
+    Set<Object> seen = new HashSet<Object>();
+    int skipped = 0;
+    while (! heads.isEmpty() && (limit < 0 || rows.size() < limit)) {
+      Head head = heads.poll();
+      if (seen.add(head.row.get("_id"))) {
+        if (skipped < offset) {
+          skipped++;
+        } else {
+          rows.add(head.row);
+        }
+      }
+      if (head.next.hasNext()) {
+        heads.add(new Head(head.next.next(), head.next));
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Counts the distinct activities of the sources.
+   *
+   * @param sources the rows of each source
+   * @return the number of activities
+   */
+  static int count(List<List<DBObject>> sources) {
+    Set<Object> ids = new HashSet<Object>();
+    for (List<DBObject> source : sources) {
+      for (DBObject row : source) {
+        ids.add(row.get("_id"));
+      }
+    }
+    return ids.size();
+  }
+
+  private static final Comparator<Head> HEAD_ORDER = new Comparator<Head>() {
+    public int compare(Head h1, Head h2) {
+      long t1 = ((Number) h1.row.get(StreamItemMongoEntity.time.getName())).longValue();
+      long t2 = ((Number) h2.row.get(StreamItemMongoEntity.time.getName())).longValue();
+      if (t1 != t2) {
+        return t1 > t2 ? -1 : 1;
+      }
+      return h2.row.get("_id").toString().compareTo(h1.row.get("_id").toString());
+    }
+  };
+
+  /** The current row of a source and the rest of its rows. */
+  private static class Head {
+
+    /** . */
+    private final DBObject row;
+
+    /** . */
+    private final Iterator<DBObject> next;
+
+    private Head(DBObject row, Iterator<DBObject> next) {
+      this.row = row;
+      this.next = next;
+    }
+
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+/**
+ * A query on a collection of stream items or feed items, one of the sources a stream is read from.
+ */
+class StreamQuery {
+
+  /** . */
+  private final DBCollection collection;
+
+  /** . */
+  private final BasicDBObject query;
+
+  StreamQuery(DBCollection collection, BasicDBObject query) {
+    this.collection = collection;
+    this.query = query;
+  }
+
+  DBCollection getCollection() {
+    return collection;
+  }
+
+  BasicDBObject getQuery() {
+    return query;
+  }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exoplatform.social.core.storage.ActivityStorageException;
+
+/**
+ * Runs the queries of the sources of a stream concurrently on a bounded pool of threads.
+ *
+ * The last query always runs in the calling thread, and so do the queries which don't fit in the queue
+ * of the pool, so a busy pool slows the reads down but never rejects them.
+ */
+public class StreamQueryExecutor {
+
+  /** Number of queries waiting for a thread, by thread of the pool. */
+  private static final int QUEUE_SIZE_BY_THREAD = 16;
+
+  /** The pool, <code>null</code> when the queries run in the calling thread. */
+  private final ThreadPoolExecutor pool;
+
+  /**
+   * @param threads the number of threads of the pool, 0 to run the queries in the calling thread
+   */
+  public StreamQueryExecutor(int threads) {
+    if (threads > 0) {
+      this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue<Runnable>(threads * QUEUE_SIZE_BY_THREAD),
+                                         new QueryThreadFactory(),
+                                         new ThreadPoolExecutor.CallerRunsPolicy());
+      this.pool.allowCoreThreadTimeOut(true);
+    } else {
+      this.pool = null;
+    }
+  }
+
+  /**
+   * Tells if the queries run concurrently.
+   * @return
+   */
+  public boolean isParallel() {
+    return pool != null;
+  }
+
+  /**
+   * Runs the queries and waits for their results.
+   *
+   * @param queries the queries
+   * @return the results, in the order of the queries
+   */
+  public <T> List<T> invokeAll(List<Callable<T>> queries) {
+    List<T> results = new ArrayList<T>(queries.size());
+    if (pool == null || queries.size() < 2) {
+      for (Callable<T> query : queries) {
+        results.add(call(query));
+      }
+      return results;
+    }
+    //
+    List<Future<T>> futures = new ArrayList<Future<T>>(queries.size() - 1);
+    for (Callable<T> query : queries.subList(0, queries.size() - 1)) {
+      futures.add(pool.submit(query));
+    }
+    T last = call(queries.get(queries.size() - 1));
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ActivityStorageException(ActivityStorageException.Type.FAILED_TO_GET_ACTIVITY, "Interrupted while reading the stream", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new ActivityStorageException(ActivityStorageException.Type.FAILED_TO_GET_ACTIVITY, e.getCause().getMessage(), e.getCause());
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    results.add(last);
+    return results;
+  }
+
+  /**
+   * Stops the threads of the pool.
+   */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  private static <T> T call(Callable<T> query) {
+    try {
+      return query.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new ActivityStorageException(ActivityStorageException.Type.FAILED_TO_GET_ACTIVITY, e.getMessage(), e);
+    }
+  }
+
+  private static class QueryThreadFactory implements ThreadFactory {
+
+    /** . */
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "mongo-stream-query-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+
+  }
+
+}
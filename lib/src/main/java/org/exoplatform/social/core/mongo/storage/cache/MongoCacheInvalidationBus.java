@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import java.util.List;
+
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+import org.exoplatform.services.log.ExoLogger;
+import org.exoplatform.services.log.Log;
+import org.exoplatform.social.core.mongo.storage.MongoStorage;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Carries the cache evictions between the nodes of a cluster through a capped collection
+ * of the MongoDB database.
+ *
+ * Each eviction done on a node is appended to the collection as a small event, the other
+ * nodes follow the collection with a tailable cursor and evict the same entries from their
+ * own caches. When a node loses track of the events, because the capped collection wrapped
+ * while it was disconnected, it clears all its caches.
+ */
+public class MongoCacheInvalidationBus {
+
+  /** . */
+  private static final Log LOG = ExoLogger.getLogger(MongoCacheInvalidationBus.class);
+
+  /** Time in milliseconds to wait before reopening the cursor after a failure. */
+  private static final long RETRY_DELAY = 1000;
+
+  /** . */
+  private static final String NODE = "node";
+
+  /** . */
+  private static final String TYPE = "type";
+
+  /** . */
+  private static final String IDS = "ids";
+
+  /**
+   * The kinds of eviction.
+   */
+  public enum Type {
+    /** Activities or comments, by id. */
+    ACTIVITY,
+    /** Stream audiences, by identity id. */
+    AUDIENCE,
+    /** All the stream audiences. */
+    AUDIENCES,
+    /** Identities, by provider id and remote id key. */
+    IDENTITY,
+    /** All the caches. */
+    ALL,
+    /** Written by a node when it starts, so that the collection is never empty. */
+    START
+  }
+
+  /** . */
+  private final MongoStorage mongoStorage;
+
+  /** . */
+  private final MongoStorageCacheService cacheService;
+
+  /** . */
+  private final String collectionName;
+
+  /** The size in bytes of the capped collection. */
+  private final long size;
+
+  /** Identifies the events written by this node, they are not applied twice. */
+  private final String nodeId = new ObjectId().toString();
+
+  /** . */
+  private DBCollection events;
+
+  /** . */
+  private Thread consumer;
+
+  /** . */
+  private volatile boolean running;
+
+  /** The id of the last event read, the consumer resumes after it when the cursor is reopened. */
+  private Object lastId;
+
+  /** Tells if the consumer starts after the last event of the collection, when the start event was not written. */
+  private boolean startAtEnd;
+
+  /**
+   * @param mongoStorage the storage holding the events collection
+   * @param cacheService the caches to evict
+   * @param collectionName the name of the capped collection
+   * @param size the size in bytes of the capped collection
+   */
+  public MongoCacheInvalidationBus(MongoStorage mongoStorage, MongoStorageCacheService cacheService, String collectionName, long size) {
+    this.mongoStorage = mongoStorage;
+    this.cacheService = cacheService;
+    this.collectionName = collectionName;
+    this.size = size;
+  }
+
+  /**
+   * Creates the capped collection if needed and starts following it.
+   */
+  public void start() {
+    DB db = mongoStorage.getDB();
+    if (!db.collectionExists(collectionName)) {
+      try {
+        db.createCollection(collectionName, new BasicDBObject("capped", true).append("size", size));
+      } catch (MongoException e) {
+        //another node created it first
+        LOG.debug("Events collection not created: " + e.getMessage());
+      }
+    }
+    this.events = db.getCollection(collectionName);
+    this.lastId = publish(Type.START);
+    //the events written before this node started are not applied
+    this.startAtEnd = lastId == null;
+    //
+    this.running = true;
+    this.consumer = new Thread(new Runnable() {
+      public void run() {
+        consume();
+      }
+    }, "mongo-cache-invalidation");
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  public void stop() {
+    running = false;
+    if (consumer != null) {
+      consumer.interrupt();
+      consumer = null;
+    }
+  }
+
+  /**
+   * Appends an eviction event for the other nodes. A failure is logged only: the entries of
+   * the other nodes expire after the live time of their caches.
+   *
+   * @param type the kind of eviction
+   * @param ids the keys of the evicted entries
+   * @return the id of the event or <code>null</code> if it was not written
+   */
+  public Object publish(Type type, String... ids) {
+    if (events == null) {
+      return null;
+    }
+    BasicDBObject event = new BasicDBObject(NODE, nodeId).append(TYPE, type.name());
+    if (ids.length > 0) {
+      event.append(IDS, ids);
+    }
+    try {
+      events.insert(event);
+      return event.get("_id");
+    } catch (MongoException e) {
+      LOG.warn("Failed to publish the cache eviction " + type + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void consume() {
+    while (running) {
+      try {
+        tail();
+      } catch (MongoException e) {
+        if (running) {
+          LOG.warn("Cache eviction events interrupted, reopening the cursor: " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        LOG.error("Failed to apply a cache eviction event", e);
+      }
+      //
+      if (running) {
+        try {
+          Thread.sleep(RETRY_DELAY);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Follows the collection from its start: the events up to the last one read are skipped,
+   * then the next ones are applied as they arrive, until the cursor dies. When the start event
+   * was not written, the last event found when the cursor is first opened is taken as the last one read.
+   */
+  private void tail() {
+    if (startAtEnd) {
+      lastId = findLastId();
+      startAtEnd = false;
+    }
+    DBCursor cursor = events.find().addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+    boolean skipping = lastId != null;
+    try {
+      while (running) {
+        DBObject event = cursor.tryNext();
+        if (event == null) {
+          if (skipping) {
+            //the last event read was overwritten, some evictions are lost
+            LOG.warn("Cache eviction events lost, clearing the caches");
+            cacheService.evict(Type.ALL);
+            skipping = false;
+          }
+          if (cursor.getCursorId() == 0) {
+            return;
+          }
+          continue;
+        }
+        if (skipping) {
+          skipping = !event.get("_id").equals(lastId);
+          continue;
+        }
+        lastId = event.get("_id");
+        if (!nodeId.equals(event.get(NODE))) {
+          apply(event);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * @return the id of the last event of the collection, <code>null</code> if it is empty
+   */
+  private Object findLastId() {
+    DBCursor cursor = events.find(new BasicDBObject(), new BasicDBObject("_id", 1)).sort(new BasicDBObject("$natural", -1)).limit(1);
+    try {
+      return cursor.hasNext() ? cursor.next().get("_id") : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private void apply(DBObject event) {
+    Type type;
+    try {
+      type = Type.valueOf((String) event.get(TYPE));
+    } catch (IllegalArgumentException e) {
+      //written by a newer version
+      return;
+    }
+    List<?> list = (BasicBSONList) event.get(IDS);
+    String[] ids = list != null ? list.toArray(new String[list.size()]) : new String[0];
+    cacheService.evict(type, ids);
+  }
+
+}
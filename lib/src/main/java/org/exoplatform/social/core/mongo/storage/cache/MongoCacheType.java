@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import java.io.Serializable;
+
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+
+/**
+ * The caches used by the MongoDB activity storage, their size and live time are set
+ * by the cache configuration of the container.
+ */
+public enum MongoCacheType {
+
+  /** The identities, by id. */
+  IDENTITY("social.MongoIdentityCache"),
+
+  /** The identity ids, by provider id and remote id. */
+  IDENTITY_INDEX("social.MongoIdentityIndexCache"),
+
+  /** The stream audiences, by identity id. */
+  AUDIENCE("social.MongoAudienceCache"),
+
+  /** The documents of activities and comments, by id. */
+  ACTIVITY("social.MongoActivityCache");
+
+  /** . */
+  private final String name;
+
+  private MongoCacheType(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <K extends Serializable, V> ExoCache<K, V> getFromService(CacheService service) {
+    return (ExoCache<K, V>) service.getCacheInstance(name);
+  }
+
+}
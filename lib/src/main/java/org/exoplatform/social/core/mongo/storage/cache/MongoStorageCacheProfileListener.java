@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import org.exoplatform.social.core.identity.model.Profile;
+import org.exoplatform.social.core.profile.ProfileLifeCycleEvent;
+import org.exoplatform.social.core.profile.ProfileListenerPlugin;
+
+/**
+ * Removes the identity of an updated profile from the caches of the MongoDB activity storage,
+ * the cached identities hold their profile.
+ */
+public class MongoStorageCacheProfileListener extends ProfileListenerPlugin {
+
+  /** . */
+  private final MongoStorageCacheService cacheService;
+
+  public MongoStorageCacheProfileListener(MongoStorageCacheService cacheService) {
+    this.cacheService = cacheService;
+  }
+
+  @Override
+  public void avatarUpdated(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  @Override
+  public void basicInfoUpdated(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  @Override
+  public void contactSectionUpdated(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  @Override
+  public void experienceSectionUpdated(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  @Override
+  public void headerSectionUpdated(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  @Override
+  public void createProfile(ProfileLifeCycleEvent event) {
+    removeIdentity(event.getProfile());
+  }
+
+  private void removeIdentity(Profile profile) {
+    if (profile != null && profile.getIdentity() != null) {
+      cacheService.removeIdentity(profile.getIdentity());
+    }
+  }
+
+}
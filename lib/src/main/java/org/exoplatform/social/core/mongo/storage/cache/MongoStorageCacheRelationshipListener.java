@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import org.exoplatform.social.core.relationship.RelationshipListenerPlugin;
+import org.exoplatform.social.core.relationship.lifecycle.RelationshipEvent;
+import org.exoplatform.social.core.relationship.model.Relationship;
+
+/**
+ * Removes the stream audiences of both sides of a relationship which is confirmed or removed.
+ */
+public class MongoStorageCacheRelationshipListener extends RelationshipListenerPlugin {
+
+  /** . */
+  private final MongoStorageCacheService cacheService;
+
+  public MongoStorageCacheRelationshipListener(MongoStorageCacheService cacheService) {
+    this.cacheService = cacheService;
+  }
+
+  @Override
+  public void confirmed(RelationshipEvent event) {
+    removeAudiences(event.getPayload());
+  }
+
+  @Override
+  public void removed(RelationshipEvent event) {
+    removeAudiences(event.getPayload());
+  }
+
+  @Override
+  public void ignored(RelationshipEvent event) {
+  }
+
+  @Override
+  public void requested(RelationshipEvent event) {
+  }
+
+  @Override
+  public void denied(RelationshipEvent event) {
+  }
+
+  private void removeAudiences(Relationship relationship) {
+    cacheService.removeAudience(relationship.getSender().getId());
+    cacheService.removeAudience(relationship.getReceiver().getId());
+  }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.cache.CacheListener;
+import org.exoplatform.services.cache.CacheListenerContext;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.services.cache.ExoCache;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.mongo.storage.ActivityDocument;
+import org.exoplatform.social.core.mongo.storage.MongoStorage;
+import org.exoplatform.social.core.mongo.storage.cache.MongoCacheInvalidationBus.Type;
+import org.picocontainer.Startable;
+
+
+/**
+ * Holds the caches in front of the JCR lookups done while reading and writing activities in MongoDB,
+ * and the cache of the activity documents themselves.
+ *
+ * When the cluster invalidation is enabled, the evictions are also sent to the other nodes
+ * through a {@link MongoCacheInvalidationBus}.
+ */
+public class MongoStorageCacheService implements Startable {
+
+  /** . */
+  private static final String DEFAULT_EVENTS_COLLECTION = "events";
+
+  /** Size in bytes of the capped events collection. */
+  private static final long DEFAULT_EVENTS_SIZE = 1024 * 1024;
+
+  /** Number of eviction stamps, the activity ids are spread over them by hash. */
+  private static final int EVICTION_STAMPS = 1024;
+
+  /** . */
+  private final ExoCache<String, Identity> identityCache;
+
+  /** . */
+  private final ExoCache<String, String> identityIndexCache;
+
+  /** . */
+  private final ExoCache<String, StreamAudience> audienceCache;
+
+  /** . */
+  private final ExoCache<String, ActivityDocument> activityCache;
+
+  /** Number of activities evicted from the cache to make room or because they expired. */
+  private final AtomicLong activityEvictions = new AtomicLong();
+
+  /** Increased by each removal of an activity, a document read before is not put in the cache. */
+  private final AtomicLongArray evictionStamps = new AtomicLongArray(EVICTION_STAMPS);
+
+  /** The bus sending the evictions to the other nodes, <code>null</code> when the node runs alone. */
+  private final MongoCacheInvalidationBus invalidationBus;
+
+  public MongoStorageCacheService(CacheService cacheService) {
+    this(cacheService, null, null);
+  }
+
+  public MongoStorageCacheService(CacheService cacheService, MongoStorage mongoStorage, InitParams params) {
+    this.identityCache = MongoCacheType.IDENTITY.getFromService(cacheService);
+    this.identityIndexCache = MongoCacheType.IDENTITY_INDEX.getFromService(cacheService);
+    this.audienceCache = MongoCacheType.AUDIENCE.getFromService(cacheService);
+    this.activityCache = MongoCacheType.ACTIVITY.getFromService(cacheService);
+    this.activityCache.addCacheListener(new EvictionCounter());
+    //
+    if (mongoStorage != null && Boolean.parseBoolean(getValue(params, "clusterInvalidation"))) {
+      String collection = getValue(params, "eventsCollection");
+      String size = getValue(params, "eventsSize");
+      this.invalidationBus = new MongoCacheInvalidationBus(mongoStorage,
+                                                           this,
+                                                           collection != null ? collection : DEFAULT_EVENTS_COLLECTION,
+                                                           size != null ? Long.parseLong(size) : DEFAULT_EVENTS_SIZE);
+    } else {
+      this.invalidationBus = null;
+    }
+  }
+
+  private static String getValue(InitParams params, String name) {
+    ValueParam param = params != null ? params.getValueParam(name) : null;
+    return param != null && param.getValue() != null ? param.getValue().trim() : null;
+  }
+
+  public ExoCache<String, Identity> getIdentityCache() {
+    return identityCache;
+  }
+
+  public ExoCache<String, String> getIdentityIndexCache() {
+    return identityIndexCache;
+  }
+
+  public ExoCache<String, StreamAudience> getAudienceCache() {
+    return audienceCache;
+  }
+
+  /**
+   * Gets the cache of the activity and comment documents. The documents are shared,
+   * they must be read only, each read builds its own activity from them.
+   *
+   * The documents are put with {@link #putActivity(String, ActivityDocument, long)}.
+   */
+  public ExoCache<String, ActivityDocument> getActivityCache() {
+    return activityCache;
+  }
+
+  /**
+   * Gets the eviction stamp of an activity or a comment, taken before reading it.
+   *
+   * @param id the id of the activity or the comment
+   * @return the stamp
+   */
+  public long getActivityStamp(String id) {
+    return evictionStamps.get(stampIndex(id));
+  }
+
+  /**
+   * Puts a document read from the primary in the cache, unless the activity or the comment was removed
+   * from the cache since its stamp was taken: the document read may be older than the write which
+   * removed it.
+   *
+   * @param id the id of the activity or the comment
+   * @param document the document
+   * @param stamp the stamp taken before reading the document
+   */
+  public void putActivity(String id, ActivityDocument document, long stamp) {
+    int index = stampIndex(id);
+    if (evictionStamps.get(index) != stamp) {
+      return;
+    }
+    activityCache.put(id, document);
+    //a removal done while putting may have come first
+    if (evictionStamps.get(index) != stamp) {
+      activityCache.remove(id);
+    }
+  }
+
+  private static int stampIndex(String id) {
+    return (id.hashCode() & Integer.MAX_VALUE) % EVICTION_STAMPS;
+  }
+
+  /**
+   * Builds the key of an identity in the index cache.
+   *
+   * @param providerId the provider id
+   * @param remoteId the remote id
+   * @return the key
+   */
+  public static String identityKey(String providerId, String remoteId) {
+    return providerId + ":" + remoteId;
+  }
+
+  /**
+   * Removes an identity from the caches, when only its provider id and remote id are known. An identity
+   * cached by its id only stays cached, use {@link #removeIdentity(Identity)} when it is known.
+   *
+   * @param providerId the provider id
+   * @param remoteId the remote id
+   */
+  public void removeIdentity(String providerId, String remoteId) {
+    String key = identityKey(providerId, remoteId);
+    evict(Type.IDENTITY, key);
+    publish(Type.IDENTITY, key);
+  }
+
+  /**
+   * Removes an identity from the caches, by its id and by its provider id and remote id.
+   *
+   * @param identity the identity
+   */
+  public void removeIdentity(Identity identity) {
+    String key = identityKey(identity.getProviderId(), identity.getRemoteId());
+    evict(Type.IDENTITY, key, identity.getId());
+    publish(Type.IDENTITY, key, identity.getId());
+  }
+
+  /**
+   * Removes the stream audience of an identity, it is built again by the next read.
+   *
+   * @param identityId the identity id
+   */
+  public void removeAudience(String identityId) {
+    if (identityId != null) {
+      evict(Type.AUDIENCE, identityId);
+      publish(Type.AUDIENCE, identityId);
+    }
+  }
+
+  /**
+   * Removes all the stream audiences, when the identities whose audience changed are not known.
+   */
+  public void clearAudiences() {
+    evict(Type.AUDIENCES);
+    publish(Type.AUDIENCES);
+  }
+
+  /**
+   * Removes activities or comments from the cache, they are loaded again by the next read.
+   *
+   * @param ids the ids of activities or comments
+   */
+  public void removeActivity(String... ids) {
+    evict(Type.ACTIVITY, ids);
+    publish(Type.ACTIVITY, ids);
+  }
+
+  public int getActivityCacheHits() {
+    return activityCache.getCacheHit();
+  }
+
+  public int getActivityCacheMisses() {
+    return activityCache.getCacheMiss();
+  }
+
+  public long getActivityCacheEvictions() {
+    return activityEvictions.get();
+  }
+
+  public int getActivityCacheSize() {
+    return activityCache.getCacheSize();
+  }
+
+  /**
+   * Clears all the caches.
+   */
+  public void clearCaches() {
+    evict(Type.ALL);
+    publish(Type.ALL);
+  }
+
+  /**
+   * Removes entries from the caches of this node only.
+   *
+   * @param type the kind of eviction
+   * @param ids the keys of the entries
+   */
+  void evict(Type type, String... ids) {
+    switch (type) {
+      case ACTIVITY:
+        for (String id : ids) {
+          if (id != null) {
+            evictionStamps.incrementAndGet(stampIndex(id));
+            activityCache.remove(id);
+          }
+        }
+        break;
+      case AUDIENCE:
+        for (String id : ids) {
+          audienceCache.remove(id);
+        }
+        break;
+      case AUDIENCES:
+        audienceCache.clearCache();
+        break;
+      case IDENTITY:
+        //the keys of the index cache or the ids of the identities
+        for (String key : ids) {
+          String id = identityIndexCache.remove(key);
+          identityCache.remove(id != null ? id : key);
+        }
+        break;
+      case ALL:
+        identityCache.clearCache();
+        identityIndexCache.clearCache();
+        audienceCache.clearCache();
+        for (int i = 0; i < EVICTION_STAMPS; i++) {
+          evictionStamps.incrementAndGet(i);
+        }
+        activityCache.clearCache();
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void publish(Type type, String... ids) {
+    if (invalidationBus != null) {
+      invalidationBus.publish(type, ids);
+    }
+  }
+
+  @Override
+  public void start() {
+    if (invalidationBus != null) {
+      invalidationBus.start();
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (invalidationBus != null) {
+      invalidationBus.stop();
+    }
+  }
+
+  /**
+   * Counts the activities which leave the cache without being removed by a write.
+   */
+  private class EvictionCounter implements CacheListener<String, ActivityDocument> {
+
+    public void onExpire(CacheListenerContext context, String key, ActivityDocument obj) throws Exception {
+      activityEvictions.incrementAndGet();
+    }
+
+    public void onRemove(CacheListenerContext context, String key, ActivityDocument obj) throws Exception {
+    }
+
+    public void onPut(CacheListenerContext context, String key, ActivityDocument obj) throws Exception {
+    }
+
+    public void onGet(CacheListenerContext context, String key, ActivityDocument obj) throws Exception {
+    }
+
+    public void onClearCache(CacheListenerContext context) throws Exception {
+    }
+
+  }
+
+}
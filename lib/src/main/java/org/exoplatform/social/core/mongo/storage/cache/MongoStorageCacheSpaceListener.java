@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvider;
+import org.exoplatform.social.core.identity.provider.SpaceIdentityProvider;
+import org.exoplatform.social.core.space.SpaceListenerPlugin;
+import org.exoplatform.social.core.space.spi.SpaceLifeCycleEvent;
+import org.exoplatform.social.core.storage.api.IdentityStorage;
+
+/**
+ * Keeps the caches of the MongoDB activity storage up to date with the changes of spaces.
+ */
+public class MongoStorageCacheSpaceListener extends SpaceListenerPlugin {
+
+  /** . */
+  private final MongoStorageCacheService cacheService;
+
+  /** . */
+  private final IdentityStorage identityStorage;
+
+  public MongoStorageCacheSpaceListener(MongoStorageCacheService cacheService, IdentityStorage identityStorage) {
+    this.cacheService = cacheService;
+    this.identityStorage = identityStorage;
+  }
+
+  @Override
+  public void spaceCreated(SpaceLifeCycleEvent event) {
+    removeAudience(event.getTarget());
+  }
+
+  @Override
+  public void spaceRemoved(SpaceLifeCycleEvent event) {
+    Identity identity = identityStorage.findIdentity(SpaceIdentityProvider.NAME, event.getSpace().getPrettyName());
+    if (identity != null) {
+      cacheService.removeIdentity(identity);
+    } else {
+      cacheService.removeIdentity(SpaceIdentityProvider.NAME, event.getSpace().getPrettyName());
+    }
+    //removing a space is rare enough to clear the audiences instead of resolving all its members
+    cacheService.clearAudiences();
+  }
+
+  @Override
+  public void spaceRenamed(SpaceLifeCycleEvent event) {
+    //the previous pretty name is not known anymore, renaming a space is rare enough to clear the caches
+    cacheService.clearCaches();
+  }
+
+  @Override
+  public void applicationActivated(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void applicationAdded(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void applicationDeactivated(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void applicationRemoved(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void grantedLead(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void joined(SpaceLifeCycleEvent event) {
+    removeAudience(event.getTarget());
+  }
+
+  @Override
+  public void left(SpaceLifeCycleEvent event) {
+    removeAudience(event.getTarget());
+  }
+
+  @Override
+  public void revokedLead(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void spaceDescriptionEdited(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void spaceAvatarEdited(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void spaceAccessEdited(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void addInvitedUser(SpaceLifeCycleEvent event) {
+  }
+
+  @Override
+  public void addPendingUser(SpaceLifeCycleEvent event) {
+  }
+
+  private void removeAudience(String userId) {
+    if (userId == null) {
+      return;
+    }
+    Identity identity = identityStorage.findIdentity(OrganizationIdentityProvider.NAME, userId);
+    if (identity != null) {
+      cacheService.removeAudience(identity.getId());
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserEventListener;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvider;
+import org.exoplatform.social.core.storage.api.IdentityStorage;
+
+/**
+ * Removes the identity of an updated or deleted user from the caches of the MongoDB activity storage.
+ */
+public class MongoStorageCacheUserListener extends UserEventListener {
+
+  /** . */
+  private final MongoStorageCacheService cacheService;
+
+  /** . */
+  private final IdentityStorage identityStorage;
+
+  public MongoStorageCacheUserListener(MongoStorageCacheService cacheService, IdentityStorage identityStorage) {
+    this.cacheService = cacheService;
+    this.identityStorage = identityStorage;
+  }
+
+  @Override
+  public void postSave(User user, boolean isNew) throws Exception {
+    if (!isNew) {
+      removeIdentity(user);
+    }
+  }
+
+  @Override
+  public void postDelete(User user) throws Exception {
+    removeIdentity(user);
+  }
+
+  private void removeIdentity(User user) {
+    //the identity is also cached by its id
+    Identity identity = identityStorage.findIdentity(OrganizationIdentityProvider.NAME, user.getUserName());
+    if (identity != null) {
+      cacheService.removeIdentity(identity);
+    } else {
+      cacheService.removeIdentity(OrganizationIdentityProvider.NAME, user.getUserName());
+    }
+  }
+
+}
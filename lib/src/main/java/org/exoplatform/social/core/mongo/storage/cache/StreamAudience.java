@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The identities and spaces whose activities are shown in the streams of a user:
+ * the ids and remote ids of his connections and the pretty names of his spaces.
+ *
+ * The arrays are sorted and must not be modified, they are given as is to the <code>$in</code> clauses.
+ */
+public class StreamAudience implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** . */
+  private final String[] connectionIds;
+
+  /** . */
+  private final String[] connectionRemoteIds;
+
+  /** . */
+  private final String[] spacePrettyNames;
+
+  /** Tells if the materialized feed of the identity has been checked against this audience. */
+  private transient volatile boolean feedChecked;
+
+  public StreamAudience(String[] connectionIds, String[] connectionRemoteIds, String[] spacePrettyNames) {
+    Arrays.sort(connectionIds);
+    Arrays.sort(connectionRemoteIds);
+    Arrays.sort(spacePrettyNames);
+    this.connectionIds = connectionIds;
+    this.connectionRemoteIds = connectionRemoteIds;
+    this.spacePrettyNames = spacePrettyNames;
+  }
+
+  public String[] getConnectionIds() {
+    return connectionIds;
+  }
+
+  public String[] getConnectionRemoteIds() {
+    return connectionRemoteIds;
+  }
+
+  public String[] getSpacePrettyNames() {
+    return spacePrettyNames;
+  }
+
+  public boolean isFeedChecked() {
+    return feedChecked;
+  }
+
+  public void setFeedChecked(boolean feedChecked) {
+    this.feedChecked = feedChecked;
+  }
+
+  /**
+   * Gets a hash of the connections and spaces, it changes when the audience changes.
+   * @return
+   */
+  public int getFingerprint() {
+    int result = Arrays.hashCode(connectionIds);
+    result = 31 * result + Arrays.hashCode(connectionRemoteIds);
+    return 31 * result + Arrays.hashCode(spacePrettyNames);
+  }
+
+}
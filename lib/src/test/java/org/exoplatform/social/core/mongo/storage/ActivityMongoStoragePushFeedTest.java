@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.activity.model.ExoSocialActivityImpl;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvider;
+import org.exoplatform.social.core.manager.RelationshipManager;
+import org.exoplatform.social.core.mongo.entity.FeedItemMongoEntity;
+import org.exoplatform.social.core.mongo.storage.ActivityMongoStorageImpl.CollectionName;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
+import org.exoplatform.social.core.relationship.model.Relationship;
+import org.exoplatform.social.core.storage.api.IdentityStorage;
+import org.exoplatform.social.core.test.AbstractCoreTest;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Checks the feeds of the PUSH mode: the actions on the activities are pushed to the feed items of the viewers,
+ * and the feeds rebuilt from the stream items show the same activities as the PULL mode.
+ */
+public class ActivityMongoStoragePushFeedTest extends AbstractCoreTest {
+
+  /** Time waited for the background rebuild of a feed. */
+  private static final long REBUILD_TIMEOUT = 10000;
+
+  private IdentityStorage identityStorage;
+  private ActivityMongoStorageImpl mongoStorage;
+  private MongoStorage storage;
+  private RelationshipManager relationshipManager;
+  private MongoStorageCacheService cacheService;
+  private List<Relationship> tearDownRelationshipList;
+  private int feedPushThreshold;
+
+  private Identity rootIdentity;
+  private Identity johnIdentity;
+  private Identity maryIdentity;
+  private Identity demoIdentity;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    identityStorage = (IdentityStorage) getContainer().getComponentInstanceOfType(IdentityStorage.class);
+    mongoStorage = (ActivityMongoStorageImpl) getContainer().getComponentInstanceOfType(ActivityMongoStorageImpl.class);
+    storage = (MongoStorage) getContainer().getComponentInstanceOfType(MongoStorage.class);
+    relationshipManager = (RelationshipManager) getContainer().getComponentInstanceOfType(RelationshipManager.class);
+    cacheService = (MongoStorageCacheService) getContainer().getComponentInstanceOfType(MongoStorageCacheService.class);
+    tearDownRelationshipList = new ArrayList<Relationship>();
+    //
+    rootIdentity = new Identity(OrganizationIdentityProvider.NAME, "root");
+    johnIdentity = new Identity(OrganizationIdentityProvider.NAME, "john");
+    maryIdentity = new Identity(OrganizationIdentityProvider.NAME, "mary");
+    demoIdentity = new Identity(OrganizationIdentityProvider.NAME, "demo");
+    identityStorage.saveIdentity(rootIdentity);
+    identityStorage.saveIdentity(johnIdentity);
+    identityStorage.saveIdentity(maryIdentity);
+    identityStorage.saveIdentity(demoIdentity);
+    //
+    connect(demoIdentity, maryIdentity);
+    connect(demoIdentity, johnIdentity);
+    feedPushThreshold = storage.getFeedPushThreshold();
+    setFeedMode(FeedMode.PUSH);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    setFeedMode(FeedMode.PULL);
+    storage.setFeedPushThreshold(feedPushThreshold);
+    for (Relationship relationship : tearDownRelationshipList) {
+      relationshipManager.delete(relationship);
+    }
+    identityStorage.deleteIdentity(rootIdentity);
+    identityStorage.deleteIdentity(johnIdentity);
+    identityStorage.deleteIdentity(maryIdentity);
+    identityStorage.deleteIdentity(demoIdentity);
+    super.tearDown();
+  }
+
+  public void testSaveActivity() {
+    mongoStorage.rebuildFeed(demoIdentity);
+    mongoStorage.rebuildFeed(maryIdentity);
+    ExoSocialActivity activity = createActivity(maryIdentity, maryIdentity, "mary's activity");
+    //
+    assertFeedItem(maryIdentity, activity);
+    assertFeedItem(demoIdentity, activity);
+    assertNull(getFeedItem(rootIdentity, activity));
+    assertEquals(activity.getId(), mongoStorage.getActivityFeed(demoIdentity, 0, 10).get(0).getId());
+  }
+
+  public void testComment() {
+    mongoStorage.rebuildFeed(demoIdentity);
+    mongoStorage.rebuildFeed(rootIdentity);
+    ExoSocialActivity first = createActivity(maryIdentity, maryIdentity, "first activity");
+    ExoSocialActivity second = createActivity(johnIdentity, johnIdentity, "second activity");
+    assertEquals(second.getId(), mongoStorage.getActivityFeed(demoIdentity, 0, 10).get(0).getId());
+    //
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("root's comment");
+    comment.setUserId(rootIdentity.getId());
+    mongoStorage.saveComment(first, comment);
+    //the commenter gets the activity, the other viewers see it moved up
+    assertFeedItem(rootIdentity, first);
+    List<ExoSocialActivity> feed = mongoStorage.getActivityFeed(demoIdentity, 0, 10);
+    assertEquals(2, feed.size());
+    assertEquals(first.getId(), feed.get(0).getId());
+    assertEquals(second.getId(), feed.get(1).getId());
+    assertEquals(((Number) getFeedItem(rootIdentity, first).get(FeedItemMongoEntity.time.getName())).longValue(),
+                 ((Number) getFeedItem(demoIdentity, first).get(FeedItemMongoEntity.time.getName())).longValue());
+  }
+
+  public void testLike() {
+    mongoStorage.rebuildFeed(rootIdentity);
+    ExoSocialActivity activity = createActivity(maryIdentity, maryIdentity, "liked activity");
+    assertNull(getFeedItem(rootIdentity, activity));
+    //
+    activity.setLikeIdentityIds(new String[] {rootIdentity.getId()});
+    mongoStorage.updateActivity(activity);
+    assertFeedItem(rootIdentity, activity);
+    assertEquals(activity.getId(), mongoStorage.getActivityFeed(rootIdentity, 0, 10).get(0).getId());
+  }
+
+  public void testDeleteActivity() {
+    mongoStorage.rebuildFeed(demoIdentity);
+    ExoSocialActivity activity = createActivity(maryIdentity, maryIdentity, "deleted activity");
+    assertFeedItem(demoIdentity, activity);
+    //
+    mongoStorage.deleteActivity(activity.getId());
+    assertEquals(0, getFeedCollection().count(new BasicDBObject(FeedItemMongoEntity.activityId.getName(), activity.getId())));
+    assertEquals(0, mongoStorage.getActivityFeed(demoIdentity, 0, 10).size());
+  }
+
+  public void testRebuildFeed() {
+    ExoSocialActivity activity = createActivity(maryIdentity, maryIdentity, "rebuilt activity");
+    //a feed item left from a former audience, and one older than the rebuilt window
+    long now = System.currentTimeMillis();
+    String left = new ObjectId().toString();
+    String old = new ObjectId().toString();
+    insertFeedItem(demoIdentity, left, now - 1000);
+    insertFeedItem(demoIdentity, old, now - 2L * 365 * 24 * 3600 * 1000);
+    //
+    long before = System.currentTimeMillis();
+    mongoStorage.rebuildFeed(demoIdentity);
+    assertNull(getFeedItem(demoIdentity, left));
+    assertNotNull(getFeedItem(demoIdentity, old));
+    DBObject feedItem = assertFeedItem(demoIdentity, activity);
+    assertTrue(((Number) feedItem.get(FeedItemMongoEntity.rebuiltAt.getName())).longValue() >= before);
+    //a second rebuild keeps the feed items it finds again
+    mongoStorage.rebuildFeed(demoIdentity);
+    assertFeedItem(demoIdentity, activity);
+  }
+
+  public void testFeedHub() {
+    //demo has 2 connections, mary and john have 1
+    storage.setFeedPushThreshold(1);
+    mongoStorage.rebuildFeed(maryIdentity);
+    assertEquals(0, mongoStorage.getActivityFeed(maryIdentity, 0, 10).size());
+    //
+    ExoSocialActivity demoActivity = createActivity(demoIdentity, demoIdentity, "demo's activity");
+    ExoSocialActivity maryActivity = createActivity(maryIdentity, maryIdentity, "mary's activity");
+    //demo has become a feed hub, mary pulls the activities of demo at read time with the audience cached before
+    assertNull(getFeedItem(maryIdentity, demoActivity));
+    assertFeedItem(maryIdentity, maryActivity);
+    assertFeedItem(demoIdentity, maryActivity);
+    assertEquals(1, mongoStorage.getCollection(CollectionName.FEED_HUB_COLLECTION)
+                                .count(new BasicDBObject(FeedItemMongoEntity.id.getName(), demoIdentity.getId())));
+    List<ExoSocialActivity> feed = mongoStorage.getActivityFeed(maryIdentity, 0, 10);
+    assertEquals(2, feed.size());
+    assertEquals(maryActivity.getId(), feed.get(0).getId());
+    assertEquals(demoActivity.getId(), feed.get(1).getId());
+    //the activities of john are still pushed
+    ExoSocialActivity johnActivity = createActivity(johnIdentity, johnIdentity, "john's activity");
+    assertFeedItem(demoIdentity, johnActivity);
+    assertNull(getFeedItem(maryIdentity, johnActivity));
+  }
+
+  public void testBackfill() throws Exception {
+    setFeedMode(FeedMode.PULL);
+    ExoSocialActivity first = createActivity(maryIdentity, maryIdentity, "first activity");
+    ExoSocialActivity second = createActivity(johnIdentity, johnIdentity, "second activity");
+    assertNull(getFeedItem(demoIdentity, first));
+    //
+    setFeedMode(FeedMode.PUSH);
+    //the feed isn't built yet, it is read from the stream items while its rebuild is queued
+    List<ExoSocialActivity> feed = mongoStorage.getActivityFeed(demoIdentity, 0, 10);
+    assertEquals(2, feed.size());
+    DBCollection stateCol = mongoStorage.getCollection(CollectionName.FEED_STATE_COLLECTION);
+    long deadline = System.currentTimeMillis() + REBUILD_TIMEOUT;
+    while (stateCol.findOne(new BasicDBObject(FeedItemMongoEntity.id.getName(), demoIdentity.getId())) == null) {
+      assertTrue("The feed wasn't rebuilt in the background", System.currentTimeMillis() < deadline);
+      Thread.sleep(50);
+    }
+    //
+    assertFeedItem(demoIdentity, first);
+    assertFeedItem(demoIdentity, second);
+    feed = mongoStorage.getActivityFeed(demoIdentity, 0, 10);
+    assertEquals(2, feed.size());
+    assertEquals(second.getId(), feed.get(0).getId());
+    assertEquals(first.getId(), feed.get(1).getId());
+  }
+
+  private void setFeedMode(FeedMode feedMode) {
+    storage.setFeedMode(feedMode);
+    //the feeds checked before are checked again
+    cacheService.clearCaches();
+  }
+
+  private ExoSocialActivity createActivity(Identity owner, Identity poster, String title) {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle(title);
+    activity.setUserId(poster.getId());
+    mongoStorage.saveActivity(owner, activity);
+    return activity;
+  }
+
+  private void connect(Identity sender, Identity receiver) {
+    Relationship relationship = relationshipManager.inviteToConnect(sender, receiver);
+    relationshipManager.confirm(receiver, sender);
+    tearDownRelationshipList.add(relationship);
+  }
+
+  private DBCollection getFeedCollection() {
+    return mongoStorage.getCollection(CollectionName.FEED_COLLECTION);
+  }
+
+  private DBObject getFeedItem(Identity viewer, ExoSocialActivity activity) {
+    return getFeedItem(viewer, activity.getId());
+  }
+
+  private DBObject getFeedItem(Identity viewer, String activityId) {
+    BasicDBObject query = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), viewer.getId());
+    query.append(FeedItemMongoEntity.activityId.getName(), activityId);
+    return getFeedCollection().findOne(query);
+  }
+
+  private DBObject assertFeedItem(Identity viewer, ExoSocialActivity activity) {
+    DBObject feedItem = getFeedItem(viewer, activity);
+    assertNotNull(activity.getTitle() + " isn't in the feed of " + viewer.getRemoteId(), feedItem);
+    assertEquals(Boolean.FALSE, feedItem.get(FeedItemMongoEntity.hiable.getName()));
+    return feedItem;
+  }
+
+  private void insertFeedItem(Identity viewer, String activityId, long time) {
+    BasicDBObject feedItem = new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), viewer.getId());
+    feedItem.append(FeedItemMongoEntity.activityId.getName(), activityId);
+    feedItem.append(FeedItemMongoEntity.time.getName(), time);
+    feedItem.append(FeedItemMongoEntity.hiable.getName(), false);
+    getFeedCollection().insert(feedItem);
+  }
+
+}
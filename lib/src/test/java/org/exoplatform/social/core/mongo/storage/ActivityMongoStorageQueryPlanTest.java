@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.exoplatform.social.core.activity.model.ExoSocialActivity;
+import org.exoplatform.social.core.activity.model.ExoSocialActivityImpl;
+import org.exoplatform.social.core.identity.model.Identity;
+import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvider;
+import org.exoplatform.social.core.identity.provider.SpaceIdentityProvider;
+import org.exoplatform.social.core.manager.IdentityManager;
+import org.exoplatform.social.core.manager.RelationshipManager;
+import org.exoplatform.social.core.mongo.entity.CommentMongoEntity;
+import org.exoplatform.social.core.mongo.entity.FeedItemMongoEntity;
+import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
+import org.exoplatform.social.core.mongo.storage.ActivityMongoStorageImpl.CollectionName;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
+import org.exoplatform.social.core.relationship.model.Relationship;
+import org.exoplatform.social.core.space.impl.DefaultSpaceApplicationHandler;
+import org.exoplatform.social.core.space.model.Space;
+import org.exoplatform.social.core.storage.api.IdentityStorage;
+import org.exoplatform.social.core.test.AbstractCoreTest;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Checks that the queries built by {@link ActivityMongoStorageImpl} are backed by indexes:
+ * each query shape is explained on a seeded dataset, it must not scan the collection.
+ * The streams are explained as the pipelines grouping their items by activity and as the finds
+ * of a page, no query must examine many more documents than it returns.
+ */
+public class ActivityMongoStorageQueryPlanTest extends AbstractCoreTest {
+
+  /** Number of activities of a page. */
+  private static final int PAGE_SIZE = 20;
+
+  /** Number of activities posted by each user, enough for a stream not sorted by its index to examine many pages. */
+  private static final int ACTIVITIES_BY_USER = 150;
+
+  /** Number of activities posted in the space and on the stream of a connection. */
+  private static final int SHARED_ACTIVITIES = 50;
+
+  /** Maximum number of documents examined by returned document. */
+  private static final int MAX_EXAMINED_RATIO = Integer.getInteger("social.mongo.explain.maxExaminedRatio", 10);
+
+  private IdentityStorage identityStorage;
+  private ActivityMongoStorageImpl mongoStorage;
+  private IdentityManager identityManager;
+  private RelationshipManager relationshipManager;
+  private MongoStorageCacheService cacheService;
+  private List<Relationship> tearDownRelationshipList;
+  private Space space;
+
+  private Identity rootIdentity;
+  private Identity johnIdentity;
+  private Identity maryIdentity;
+  private Identity demoIdentity;
+  private Identity spaceIdentity;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    identityStorage = (IdentityStorage) getContainer().getComponentInstanceOfType(IdentityStorage.class);
+    mongoStorage = (ActivityMongoStorageImpl) getContainer().getComponentInstanceOfType(ActivityMongoStorageImpl.class);
+    identityManager = (IdentityManager) getContainer().getComponentInstanceOfType(IdentityManager.class);
+    relationshipManager = (RelationshipManager) getContainer().getComponentInstanceOfType(RelationshipManager.class);
+    cacheService = (MongoStorageCacheService) getContainer().getComponentInstanceOfType(MongoStorageCacheService.class);
+    tearDownRelationshipList = new ArrayList<Relationship>();
+    //
+    rootIdentity = new Identity(OrganizationIdentityProvider.NAME, "root");
+    johnIdentity = new Identity(OrganizationIdentityProvider.NAME, "john");
+    maryIdentity = new Identity(OrganizationIdentityProvider.NAME, "mary");
+    demoIdentity = new Identity(OrganizationIdentityProvider.NAME, "demo");
+    identityStorage.saveIdentity(rootIdentity);
+    identityStorage.saveIdentity(johnIdentity);
+    identityStorage.saveIdentity(maryIdentity);
+    identityStorage.saveIdentity(demoIdentity);
+    //
+    space = new Space();
+    space.setDisplayName("plan space");
+    space.setPrettyName(space.getDisplayName());
+    space.setType(DefaultSpaceApplicationHandler.NAME);
+    space.setVisibility(Space.PUBLIC);
+    space.setRegistration(Space.VALIDATION);
+    space.setPriority(Space.INTERMEDIATE_PRIORITY);
+    space.setGroupId("/space/planspace");
+    space.setUrl(space.getPrettyName());
+    space.setManagers(new String[] {"demo"});
+    space.setMembers(new String[] {"demo", "mary"});
+    spaceService.saveSpace(space, true);
+    spaceIdentity = identityManager.getOrCreateIdentity(SpaceIdentityProvider.NAME, space.getPrettyName(), false);
+    //
+    connect(demoIdentity, maryIdentity);
+    connect(demoIdentity, johnIdentity);
+    connect(maryIdentity, rootIdentity);
+    cacheService.clearCaches();
+    //
+    seed();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Relationship relationship : tearDownRelationshipList) {
+      relationshipManager.delete(relationship);
+    }
+    mongoStorage.getCollection(CollectionName.FEED_COLLECTION).remove(new BasicDBObject(FeedItemMongoEntity.viewerId.getName(), demoIdentity.getId()));
+    identityStorage.deleteIdentity(rootIdentity);
+    identityStorage.deleteIdentity(johnIdentity);
+    identityStorage.deleteIdentity(maryIdentity);
+    identityStorage.deleteIdentity(demoIdentity);
+    identityStorage.deleteIdentity(spaceIdentity);
+    spaceService.deleteSpace(space);
+    super.tearDown();
+  }
+
+  public void testUserActivitiesQuery() {
+    assertIndexed("user activities", mongoStorage.buildQueryForUserActivities(demoIdentity, null));
+    assertIndexed("older user activities", mongoStorage.buildQueryForUserActivities(demoIdentity, older()));
+  }
+
+  public void testActivityFeedQuery() {
+    assertIndexed("activity feed", mongoStorage.buildQueryForActivityFeed(demoIdentity, null));
+    assertIndexed("older activity feed", mongoStorage.buildQueryForActivityFeed(demoIdentity, older()));
+  }
+
+  public void testActivityFeedBranchQueries() {
+    for (BasicDBObject branch : mongoStorage.buildQueryBranchesForActivityFeed(demoIdentity, mongoStorage.getAudience(demoIdentity))) {
+      assertIndexed("activity feed branch " + branch.keySet(), ActivityMongoStorageImpl.withTimerAndNotHidden(branch, null));
+    }
+  }
+
+  public void testActivitiesOfConnectionsQuery() {
+    assertIndexed("activities of connections", mongoStorage.buildQueryForActivityOfConnections(demoIdentity, null));
+    assertIndexed("older activities of connections", mongoStorage.buildQueryForActivityOfConnections(demoIdentity, older()));
+  }
+
+  public void testUserSpacesActivitiesQuery() {
+    assertIndexed("user spaces activities", mongoStorage.getUserSpaceActivitiesDBCursor(demoIdentity, null));
+    assertIndexed("older user spaces activities", mongoStorage.getUserSpaceActivitiesDBCursor(demoIdentity, older()));
+  }
+
+  public void testSpaceActivitiesQuery() {
+    assertIndexed("space activities", mongoStorage.buildQueryForSpaceActivities(spaceIdentity, null));
+    assertIndexed("older space activities", mongoStorage.buildQueryForSpaceActivities(spaceIdentity, older()));
+  }
+
+  public void testFeedItemsQuery() {
+    //the feed items are the items of the feed in PUSH mode, built the same way whatever the mode of the tests
+    mongoStorage.rebuildFeed(demoIdentity);
+    DBCollection feedCol = mongoStorage.getCollection(CollectionName.FEED_COLLECTION);
+    assertIndexed("feed items", feedCol, mongoStorage.buildQueryForFeedItems(demoIdentity, null));
+    assertIndexed("older feed items", feedCol, mongoStorage.buildQueryForFeedItems(demoIdentity, older()));
+  }
+
+  public void testActivitiesOfPageQuery() {
+    List<ObjectId> ids = new ArrayList<ObjectId>();
+    for (ExoSocialActivity activity : mongoStorage.getActivityFeed(demoIdentity, 0, PAGE_SIZE)) {
+      ids.add(new ObjectId(activity.getId()));
+    }
+    assertEquals(PAGE_SIZE, ids.size());
+    assertIndexed("activities of a page", mongoStorage.getCollection(CollectionName.ACTIVITY_COLLECTION),
+                  ActivityMongoStorageImpl.buildQueryForActivities(ids), null);
+  }
+
+  public void testStreamItemsOfActivityQuery() {
+    ExoSocialActivity activity = mongoStorage.getUserActivities(demoIdentity, 0, 1).get(0);
+    BasicDBObject query = new BasicDBObject(StreamItemMongoEntity.activityId.getName(), activity.getId());
+    query.append(StreamItemMongoEntity.viewerId.getName(), demoIdentity.getId());
+    assertIndexed("stream item of a viewer", mongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION), query, null);
+  }
+
+  public void testCommentsQuery() {
+    ExoSocialActivity activity = mongoStorage.getUserActivities(demoIdentity, 0, 1).get(0);
+    BasicDBObject query = new BasicDBObject(CommentMongoEntity.activityId.getName(), activity.getId());
+    BasicDBObject sort = new BasicDBObject(CommentMongoEntity.postedTime.getName(), -1);
+    assertIndexed("comments", mongoStorage.getCollection(CollectionName.COMMENT_COLLECTION), query, sort);
+  }
+
+  /**
+   * Seeds the streams: activities posted by each user, in the space and on the stream of a connection,
+   * with comments and likes.
+   */
+  private void seed() {
+    List<ExoSocialActivity> activities = new ArrayList<ExoSocialActivity>();
+    for (Identity identity : new Identity[] {rootIdentity, johnIdentity, maryIdentity, demoIdentity}) {
+      for (int i = 0; i < ACTIVITIES_BY_USER; i++) {
+        activities.add(createActivity(identity, identity, i));
+      }
+    }
+    for (int i = 0; i < SHARED_ACTIVITIES; i++) {
+      activities.add(createActivity(spaceIdentity, i % 2 == 0 ? demoIdentity : maryIdentity, i));
+      activities.add(createActivity(demoIdentity, maryIdentity, i));
+    }
+    //
+    for (int i = 0; i < activities.size(); i += 5) {
+      ExoSocialActivity activity = activities.get(i);
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment on " + activity.getTitle());
+      comment.setUserId(johnIdentity.getId());
+      mongoStorage.saveComment(activity, comment);
+      //
+      activity.setLikeIdentityIds(new String[] {rootIdentity.getId()});
+      mongoStorage.updateActivity(activity);
+    }
+  }
+
+  private ExoSocialActivity createActivity(Identity owner, Identity poster, int number) {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("activity " + number + " of " + poster.getRemoteId());
+    activity.setUserId(poster.getId());
+    mongoStorage.saveActivity(owner, activity);
+    return activity;
+  }
+
+  private void connect(Identity sender, Identity receiver) {
+    Relationship relationship = relationshipManager.inviteToConnect(sender, receiver);
+    relationshipManager.confirm(receiver, sender);
+    tearDownRelationshipList.add(relationship);
+  }
+
+  private BasicDBObject older() {
+    return new BasicDBObject(StreamItemMongoEntity.time.getName(), new BasicDBObject("$lt", System.currentTimeMillis()));
+  }
+
+  private void assertIndexed(String shape, BasicDBObject query) {
+    assertIndexed(shape, mongoStorage.getCollection(CollectionName.STREAM_ITEM_COLLECTION), query);
+  }
+
+  /**
+   * Explains the pipeline reading a page of a stream, the items are grouped by activity. The <code>$match</code>
+   * of the pipeline is explained too with the sort and the limit of a page: the index must give the items
+   * in the order of the stream, instead of sorting all the items of the stream to keep a page.
+   */
+  private void assertIndexed(String shape, DBCollection collection, BasicDBObject query) {
+    BasicDBObject sort = new BasicDBObject(StreamItemMongoEntity.time.getName(), -1);
+    List<DBObject> pipeline = ActivityMongoStorageImpl.buildActivityPipeline(query, sort, 0, PAGE_SIZE);
+    DBObject plan = collection.explainAggregate(pipeline, ActivityMongoStorageImpl.aggregationOptions());
+    DBObject cursorStage = getCursorStage(plan);
+    assertNotNull(shape + " doesn't read the collection: " + plan, cursorStage);
+    assertFalse(shape + " scans the collection: " + plan, isCollectionScan(cursorStage));
+    //
+    assertExaminedRatio(shape, collection.find(query).sort(sort).limit(PAGE_SIZE).explain());
+  }
+
+  private void assertIndexed(String shape, DBCollection collection, BasicDBObject query, BasicDBObject sort) {
+    DBCursor cursor = collection.find(query);
+    DBObject plan = (sort != null ? cursor.sort(sort) : cursor).limit(PAGE_SIZE).explain();
+    assertFalse(shape + " scans the collection: " + plan, isCollectionScan(plan));
+    assertExaminedRatio(shape, plan);
+  }
+
+  private static void assertExaminedRatio(String shape, DBObject plan) {
+    long[] stats = getExaminedAndReturned(plan);
+    if (stats != null) {
+      assertTrue(String.format("%s examines %d documents to return %d: %s", shape, stats[0], stats[1], plan),
+                 stats[0] <= MAX_EXAMINED_RATIO * Math.max(stats[1], 1));
+    }
+  }
+
+  /**
+   * @return the plan of the stage reading the collection, the whole explain when the pipeline was turned into a query
+   */
+  private static DBObject getCursorStage(DBObject plan) {
+    if (!(plan.get("stages") instanceof List)) {
+      return plan;
+    }
+    for (Object stage : (List<?>) plan.get("stages")) {
+      if (stage instanceof DBObject && ((DBObject) stage).get("$cursor") instanceof DBObject) {
+        DBObject cursor = (DBObject) ((DBObject) stage).get("$cursor");
+        //MongoDB 2.6 gives the plan of the query as plan
+        return cursor.get("plan") instanceof DBObject ? (DBObject) cursor.get("plan") : cursor;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isCollectionScan(DBObject plan) {
+    if (plan.containsField("queryPlanner")) {
+      return hasStage(((DBObject) plan.get("queryPlanner")).get("winningPlan"), "COLLSCAN");
+    }
+    //MongoDB 2.x, one cursor by clause of a $or
+    if (plan.containsField("clauses")) {
+      for (Object clause : (List<?>) plan.get("clauses")) {
+        if (isCollectionScan((DBObject) clause)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return String.valueOf(plan.get("cursor")).startsWith("BasicCursor");
+  }
+
+  private static boolean hasStage(Object node, String stage) {
+    if (!(node instanceof DBObject)) {
+      return false;
+    }
+    DBObject plan = (DBObject) node;
+    if (stage.equals(plan.get("stage"))) {
+      return true;
+    }
+    if (hasStage(plan.get("inputStage"), stage)) {
+      return true;
+    }
+    if (plan.get("inputStages") instanceof List) {
+      for (Object input : (List<?>) plan.get("inputStages")) {
+        if (hasStage(input, stage)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the numbers of documents examined and returned, <code>null</code> if the plan doesn't tell them
+   */
+  private static long[] getExaminedAndReturned(DBObject plan) {
+    if (plan.get("executionStats") instanceof DBObject) {
+      DBObject stats = (DBObject) plan.get("executionStats");
+      return new long[] {((Number) stats.get("totalDocsExamined")).longValue(), ((Number) stats.get("nReturned")).longValue()};
+    }
+    if (plan.get("nscannedObjects") instanceof Number && plan.get("n") instanceof Number) {
+      return new long[] {((Number) plan.get("nscannedObjects")).longValue(), ((Number) plan.get("n")).longValue()};
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.exoplatform.social.core.test.AbstractCoreTest;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+/**
+ * Checks that a migration is run once for all the nodes sharing the database.
+ */
+public class MongoMigrationTest extends AbstractCoreTest {
+
+  private static final String MIGRATION_ID = "test.migration";
+
+  private DBCollection migrationCol;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    MongoStorage mongoStorage = (MongoStorage) getContainer().getComponentInstanceOfType(MongoStorage.class);
+    migrationCol = mongoStorage.getDB().getCollection("test.migration");
+  }
+
+  public void testRunOnce() {
+    CountingMigration migration = new CountingMigration();
+    assertTrue(MongoMigration.runOnce(migrationCol, MIGRATION_ID, migration));
+    assertTrue(MongoMigration.runOnce(migrationCol, MIGRATION_ID, migration));
+    assertEquals(1, migration.runs.get());
+    assertEquals(MongoMigration.DONE, migrationCol.findOne(new BasicDBObject("_id", MIGRATION_ID)).get(MongoMigration.STATE));
+  }
+
+  public void testRunningElsewhere() {
+    //another node inserted the migration first
+    migrationCol.insert(new BasicDBObject("_id", MIGRATION_ID).append(MongoMigration.STATE, MongoMigration.RUNNING));
+    CountingMigration migration = new CountingMigration();
+    assertFalse(MongoMigration.runOnce(migrationCol, MIGRATION_ID, migration));
+    assertEquals(0, migration.runs.get());
+  }
+
+  public void testFailedMigrationIsRunAgain() {
+    assertFalse(MongoMigration.runOnce(migrationCol, MIGRATION_ID, new Runnable() {
+      public void run() {
+        throw new IllegalStateException("failed");
+      }
+    }));
+    assertNull(migrationCol.findOne(new BasicDBObject("_id", MIGRATION_ID)));
+    //
+    CountingMigration migration = new CountingMigration();
+    assertTrue(MongoMigration.runOnce(migrationCol, MIGRATION_ID, migration));
+    assertEquals(1, migration.runs.get());
+  }
+
+  private static class CountingMigration implements Runnable {
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    public void run() {
+      runs.incrementAndGet();
+    }
+
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.exoplatform.social.core.mongo.entity.StreamItemMongoEntity;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Checks the merge of the activity rows read from several sources of a stream.
+ */
+public class StreamMergerTest extends TestCase {
+
+  public void testMergeByTime() {
+    List<DBObject> first = rows(row("a5", 50), row("a3", 30), row("a1", 10));
+    List<DBObject> second = rows(row("a4", 40), row("a2", 20));
+    assertEquals(Arrays.asList("a5", "a4", "a3", "a2", "a1"), ids(StreamMerger.merge(sources(first, second), 0, -1)));
+    assertEquals(Arrays.asList("a5", "a4", "a3"), ids(StreamMerger.merge(sources(first, second), 0, 3)));
+    assertEquals(0, StreamMerger.merge(sources(first, second), 0, 0).size());
+  }
+
+  public void testDuplicatesAcrossSources() {
+    //a2 is found by both sources, with its time in each
+    List<DBObject> first = rows(row("a3", 30), row("a2", 25), row("a1", 10));
+    List<DBObject> second = rows(row("a2", 25), row("a4", 20));
+    List<DBObject> merged = StreamMerger.merge(sources(first, second), 0, -1);
+    assertEquals(Arrays.asList("a3", "a2", "a4", "a1"), ids(merged));
+    assertEquals(4, StreamMerger.count(sources(first, second)));
+  }
+
+  public void testOffsetAfterDuplicates() {
+    List<DBObject> first = rows(row("a4", 40), row("a3", 30), row("a1", 10));
+    List<DBObject> second = rows(row("a4", 40), row("a3", 30), row("a2", 20));
+    //the duplicates are not counted in the offset
+    assertEquals(Arrays.asList("a2", "a1"), ids(StreamMerger.merge(sources(first, second), 2, 2)));
+    assertEquals(Arrays.asList("a3"), ids(StreamMerger.merge(sources(first, second), 1, 1)));
+    assertEquals(0, StreamMerger.merge(sources(first, second), 4, 2).size());
+  }
+
+  public void testTiesBrokenOnId() {
+    List<DBObject> first = rows(row("a1", 10));
+    List<DBObject> second = rows(row("a3", 10), row("a2", 10));
+    //same time, the greatest id first as the pages sort on time then _id
+    assertEquals(Arrays.asList("a3", "a2", "a1"), ids(StreamMerger.merge(sources(first, second), 0, -1)));
+    assertEquals(Arrays.asList("a2"), ids(StreamMerger.merge(sources(first, second), 1, 1)));
+  }
+
+  public void testEmptySources() {
+    List<DBObject> none = rows();
+    List<DBObject> first = rows(row("a1", 10));
+    assertEquals(Arrays.asList("a1"), ids(StreamMerger.merge(sources(none, first, none), 0, 10)));
+    assertEquals(0, StreamMerger.merge(sources(none, none), 0, 10).size());
+  }
+
+  private static DBObject row(String id, long time) {
+    return new BasicDBObject("_id", id).append(StreamItemMongoEntity.time.getName(), time);
+  }
+
+  private static List<DBObject> rows(DBObject... rows) {
+    return Arrays.asList(rows);
+  }
+
+  private static List<List<DBObject>> sources(List<DBObject>... sources) {
+    return Arrays.asList(sources);
+  }
+
+  private static List<String> ids(List<DBObject> rows) {
+    List<String> ids = new ArrayList<String>(rows.size());
+    for (DBObject row : rows) {
+      ids.add(row.get("_id").toString());
+    }
+    return ids;
+  }
+
+}
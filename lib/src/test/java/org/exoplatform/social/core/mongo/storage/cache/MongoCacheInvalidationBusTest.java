@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2003-2014 eXo Platform SAS.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Affero General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.exoplatform.social.core.mongo.storage.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.exoplatform.container.xml.InitParams;
+import org.exoplatform.container.xml.ValueParam;
+import org.exoplatform.services.cache.CacheService;
+import org.exoplatform.social.core.mongo.storage.MongoStorage;
+import org.exoplatform.social.core.mongo.storage.cache.MongoCacheInvalidationBus.Type;
+import org.exoplatform.social.core.test.AbstractCoreTest;
+
+/**
+ * Checks that the evictions of a node reach the other nodes sharing the events collection. Each node is
+ * a {@link MongoStorageCacheService} recording the evictions applied from the events.
+ */
+public class MongoCacheInvalidationBusTest extends AbstractCoreTest {
+
+  /** . */
+  private static final String EVENTS_COLLECTION = "test.events";
+
+  /** . */
+  private static final long EVENTS_SIZE = 64 * 1024;
+
+  /** Time waited for an event to reach a node. */
+  private static final long EVENT_TIMEOUT = 5000;
+
+  private MongoStorage mongoStorage;
+  private CacheService cacheService;
+  private List<MongoStorageCacheService> nodes;
+  private List<MongoCacheInvalidationBus> buses;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mongoStorage = (MongoStorage) getContainer().getComponentInstanceOfType(MongoStorage.class);
+    cacheService = (CacheService) getContainer().getComponentInstanceOfType(CacheService.class);
+    nodes = new CopyOnWriteArrayList<MongoStorageCacheService>();
+    buses = new CopyOnWriteArrayList<MongoCacheInvalidationBus>();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (MongoStorageCacheService node : nodes) {
+      node.stop();
+    }
+    for (MongoCacheInvalidationBus bus : buses) {
+      bus.stop();
+    }
+    mongoStorage.getDB().getCollection(EVENTS_COLLECTION).drop();
+    super.tearDown();
+  }
+
+  public void testEvictionsReachOtherNode() throws Exception {
+    RecordingCacheService first = startNode();
+    RecordingCacheService second = startNode();
+    //
+    first.removeActivity("activity1");
+    second.waitFor(Type.ACTIVITY, "activity1");
+    second.removeAudience("identity1");
+    first.waitFor(Type.AUDIENCE, "identity1");
+    second.clearCaches();
+    first.waitFor(Type.ALL, null);
+    //a node doesn't apply its own events
+    assertFalse(first.received(Type.ACTIVITY, "activity1"));
+    assertFalse(second.received(Type.AUDIENCE, "identity1"));
+  }
+
+  public void testEventsBeforeStartAreNotApplied() throws Exception {
+    RecordingCacheService first = startNode();
+    RecordingCacheService second = startNode();
+    first.removeActivity("before");
+    second.waitFor(Type.ACTIVITY, "before");
+    //
+    RecordingCacheService third = startNode();
+    first.removeActivity("after");
+    third.waitFor(Type.ACTIVITY, "after");
+    assertFalse(third.received(Type.ACTIVITY, "before"));
+  }
+
+  public void testMissingStartEvent() throws Exception {
+    RecordingCacheService first = startNode();
+    RecordingCacheService second = startNode();
+    first.removeActivity("before");
+    second.waitFor(Type.ACTIVITY, "before");
+    //the start event of the third node is not written, it must not replay the collection
+    RecordingCacheService third = new RecordingCacheService(cacheService, null, null);
+    MongoCacheInvalidationBus bus = new MongoCacheInvalidationBus(mongoStorage, third, EVENTS_COLLECTION, EVENTS_SIZE) {
+      @Override
+      public Object publish(Type type, String... ids) {
+        return type == Type.START ? null : super.publish(type, ids);
+      }
+    };
+    buses.add(bus);
+    bus.start();
+    //the consumer starts after the last event found when it first opens its cursor
+    Thread.sleep(500);
+    //
+    first.removeActivity("after");
+    third.waitFor(Type.ACTIVITY, "after");
+    assertFalse(third.received(Type.ACTIVITY, "before"));
+    assertFalse(third.received(Type.ALL, null));
+  }
+
+  private RecordingCacheService startNode() {
+    InitParams params = new InitParams();
+    params.addParameter(valueParam("clusterInvalidation", "true"));
+    params.addParameter(valueParam("eventsCollection", EVENTS_COLLECTION));
+    params.addParameter(valueParam("eventsSize", String.valueOf(EVENTS_SIZE)));
+    RecordingCacheService node = new RecordingCacheService(cacheService, mongoStorage, params);
+    nodes.add(node);
+    node.start();
+    return node;
+  }
+
+  private static ValueParam valueParam(String name, String value) {
+    ValueParam param = new ValueParam();
+    param.setName(name);
+    param.setValue(value);
+    return param;
+  }
+
+  /**
+   * Records the evictions applied by the consumer of the events. The nodes share the caches of the container,
+   * only the evictions received are checked.
+   */
+  private static class RecordingCacheService extends MongoStorageCacheService {
+
+    /** . */
+    private final List<String> received = new CopyOnWriteArrayList<String>();
+
+    private RecordingCacheService(CacheService cacheService, MongoStorage mongoStorage, InitParams params) {
+      super(cacheService, mongoStorage, params);
+    }
+
+    @Override
+    void evict(Type type, String... ids) {
+      super.evict(type, ids);
+      if ("mongo-cache-invalidation".equals(Thread.currentThread().getName())) {
+        if (ids.length == 0) {
+          received.add(key(type, null));
+        }
+        for (String id : ids) {
+          received.add(key(type, id));
+        }
+      }
+    }
+
+    private boolean received(Type type, String id) {
+      return received.contains(key(type, id));
+    }
+
+    private void waitFor(Type type, String id) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+      while (! received(type, id)) {
+        assertTrue("The eviction " + key(type, id) + " was not received: " + received, System.currentTimeMillis() < deadline);
+        Thread.sleep(20);
+      }
+    }
+
+    private static String key(Type type, String id) {
+      return id != null ? type + ":" + id : type.name();
+    }
+
+  }
+
+}
@@ -17,8 +17,13 @@
 package org.exoplatform.social.core.storage.impl;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.exoplatform.services.jcr.RepositoryService;
 import org.exoplatform.social.core.activity.model.ExoSocialActivity;
 import org.exoplatform.social.core.activity.model.ExoSocialActivityImpl;
 import org.exoplatform.social.core.identity.model.Identity;
@@ -26,7 +31,12 @@ import org.exoplatform.social.core.identity.provider.OrganizationIdentityProvide
 import org.exoplatform.social.core.identity.provider.SpaceIdentityProvider;
 import org.exoplatform.social.core.manager.IdentityManager;
 import org.exoplatform.social.core.manager.RelationshipManager;
+import org.exoplatform.social.core.mongo.storage.ActivityDecoder;
+import org.exoplatform.social.core.mongo.storage.ActivityDocument;
 import org.exoplatform.social.core.mongo.storage.ActivityMongoStorageImpl;
+import org.exoplatform.social.core.mongo.storage.ActivityPage;
+import org.exoplatform.social.core.mongo.storage.MongoStorage;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
 import org.exoplatform.social.core.relationship.model.Relationship;
 import org.exoplatform.social.core.space.impl.DefaultSpaceApplicationHandler;
 import org.exoplatform.social.core.space.model.Space;
@@ -34,6 +44,9 @@ import org.exoplatform.social.core.space.spi.SpaceService;
 import org.exoplatform.social.core.storage.api.IdentityStorage;
 import org.exoplatform.social.core.test.AbstractCoreTest;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
 public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
   
   private IdentityStorage identityStorage;
@@ -41,6 +54,7 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
   private RelationshipManager relationshipManager;
   private SpaceService spaceService;
   private IdentityManager identityManager;
+  private MongoStorageCacheService cacheService;
   private List<ExoSocialActivity> tearDownActivityList;
   private List<Space> tearDownSpaceList;
 
@@ -58,6 +72,7 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     relationshipManager = (RelationshipManager) getContainer().getComponentInstanceOfType(RelationshipManager.class);
     spaceService = (SpaceService) getContainer().getComponentInstanceOfType(SpaceService.class);
     identityManager = (IdentityManager) getContainer().getComponentInstanceOfType(IdentityManager.class);
+    cacheService = (MongoStorageCacheService) getContainer().getComponentInstanceOfType(MongoStorageCacheService.class);
     //
     rootIdentity = new Identity(OrganizationIdentityProvider.NAME, "root");
     johnIdentity = new Identity(OrganizationIdentityProvider.NAME, "john");
@@ -133,6 +148,22 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     tearDownActivityList.add(activity);
   }
   
+  public void testHideActivity() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("hello @demo @john @mary");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    tearDownActivityList.add(activity);
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    
+    //every stream item of the activity is updated
+    activity.isHidden(true);
+    mongoStorage.updateActivity(activity);
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(rootIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(johnIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(maryIdentity));
+  }
+  
   public void testSaveComment() {
     ExoSocialActivity activity = createActivity(1);
     //
@@ -143,9 +174,166 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     
     ExoSocialActivity got = mongoStorage.getComment(comment.getId());
     assertNotNull(got);
+    assertEquals(1, mongoStorage.getNumberOfComments(activity));
     
   }
   
+  public void testCommentCountOfLegacyActivity() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("activity saved before the comment counter");
+    mongoStorage.saveActivity(demoIdentity, activity);
+    tearDownActivityList.add(activity);
+    List<ExoSocialActivity> comments = new ArrayList<ExoSocialActivity>();
+    for (int i = 0; i < 2; i++) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment " + i);
+      comment.setUserId(johnIdentity.getId());
+      mongoStorage.saveComment(activity, comment);
+      comments.add(comment);
+    }
+    //the activities saved by the earlier versions have no counter
+    DBCollection activityCol = getCollection("activity");
+    BasicDBObject byId = new BasicDBObject("_id", new ObjectId(activity.getId()));
+    BasicDBObject unsetCount = new BasicDBObject("$unset", new BasicDBObject("commentCount", ""));
+    activityCol.update(byId, unsetCount);
+    assertEquals(2, mongoStorage.getNumberOfComments(activity));
+    //
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("comment 2");
+    comment.setUserId(johnIdentity.getId());
+    mongoStorage.saveComment(activity, comment);
+    assertEquals(3, ((Number) activityCol.findOne(byId).get("commentCount")).intValue());
+    assertEquals(3, mongoStorage.getNumberOfComments(activity));
+    //
+    activityCol.update(byId, unsetCount);
+    mongoStorage.deleteComment(activity.getId(), comments.get(0).getId());
+    assertEquals(2, ((Number) activityCol.findOne(byId).get("commentCount")).intValue());
+    assertEquals(2, mongoStorage.getNumberOfComments(activity));
+  }
+  
+  public void testDeleteActivity() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("hello @demo");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    for (int i = 0; i < 3; i++) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment " + i);
+      comment.setUserId(johnIdentity.getId());
+      mongoStorage.saveComment(activity, comment);
+    }
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(johnIdentity));
+    
+    mongoStorage.deleteActivity(activity.getId());
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(rootIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(johnIdentity));
+    //the comments are deleted with the activity
+    assertEquals(0, mongoStorage.getNumberOfComments(activity));
+  }
+  
+  public void testActivityCache() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("cached activity");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    tearDownActivityList.add(activity);
+    
+    mongoStorage.getActivity(activity.getId());
+    int hits = cacheService.getActivityCacheHits();
+    mongoStorage.getActivity(activity.getId());
+    assertEquals(hits + 1, cacheService.getActivityCacheHits());
+    
+    //the writes remove the activity from the cache
+    activity.setTitle("updated activity");
+    mongoStorage.updateActivity(activity);
+    assertEquals("updated activity", mongoStorage.getActivity(activity.getId()).getTitle());
+    
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("comment");
+    comment.setUserId(johnIdentity.getId());
+    mongoStorage.saveComment(activity, comment);
+    assertEquals(1, mongoStorage.getActivity(activity.getId()).getReplyToId().length);
+    assertEquals("comment", mongoStorage.getComment(comment.getId()).getTitle());
+    
+    mongoStorage.deleteComment(activity.getId(), comment.getId());
+    assertEquals(0, mongoStorage.getActivity(activity.getId()).getReplyToId().length);
+  }
+  
+  public void testActivityDecoder() throws Exception {
+    ObjectId id = new ObjectId();
+    BasicDBObject entity = new BasicDBObject("_id", id);
+    entity.append("title", "héllo @demo");
+    entity.append("poster", demoIdentity.getId());
+    entity.append("likers", new String[] {"demo", "mary"});
+    entity.append("mentioners", new String[0]);
+    entity.append("params", new BasicDBObject("link", "http://exoplatform.com"));
+    entity.append("hidable", true);
+    entity.append("postedTime", 1234567890123L);
+    entity.append("lastUpdated", 1234567890456L);
+    entity.append("commentCount", 2);
+    byte[] bson = new BasicBSONEncoder().encode(entity);
+    
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    ((ActivityDocument) new ActivityDecoder().decode(bson, null)).fill(activity);
+    assertEquals(id.toString(), activity.getId());
+    assertEquals("héllo @demo", activity.getTitle());
+    assertEquals(demoIdentity.getId(), activity.getPosterId());
+    assertEquals(2, activity.getLikeIdentityIds().length);
+    assertEquals("mary", activity.getLikeIdentityIds()[1]);
+    assertEquals(0, activity.getMentionedIds().length);
+    assertEquals("http://exoplatform.com", activity.getTemplateParams().get("link"));
+    assertTrue(activity.isHidden());
+    assertEquals(1234567890123L, activity.getPostedTime().longValue());
+    
+    //a field of an unexpected type falls back on the default decoder
+    entity.append("title", 42);
+    bson = new BasicBSONEncoder().encode(entity);
+    activity = new ExoSocialActivityImpl();
+    ((ActivityDocument) new ActivityDecoder().decode(bson, null)).fill(activity);
+    assertEquals("42", activity.getTitle());
+    assertEquals(id.toString(), activity.getId());
+  }
+  
+  public void testLatestComments() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("commented activity");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    tearDownActivityList.add(activity);
+    List<ExoSocialActivity> comments = new ArrayList<ExoSocialActivity>();
+    for (int i = 0; i < 5; i++) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment " + i);
+      comment.setUserId(johnIdentity.getId());
+      mongoStorage.saveComment(activity, comment);
+      comments.add(comment);
+    }
+    
+    //the last comments are embedded in the activity, the older ones are read from their collection
+    List<ExoSocialActivity> got = mongoStorage.getComments(activity, 3, 2);
+    assertEquals(2, got.size());
+    assertEquals("comment 3", got.get(0).getTitle());
+    assertEquals("comment 4", got.get(1).getTitle());
+    got = mongoStorage.getComments(activity, 0, 5);
+    assertEquals(5, got.size());
+    assertEquals("comment 0", got.get(0).getTitle());
+    
+    //the embedded comments are rebuilt when one of them is deleted
+    mongoStorage.deleteComment(activity.getId(), comments.get(4).getId());
+    got = mongoStorage.getComments(activity, 2, 2);
+    assertEquals(2, got.size());
+    assertEquals("comment 2", got.get(0).getTitle());
+    assertEquals("comment 3", got.get(1).getTitle());
+    //the rebuilt comments are the last ones, the next comment is appended to them
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("comment 5");
+    comment.setUserId(johnIdentity.getId());
+    mongoStorage.saveComment(activity, comment);
+    got = mongoStorage.getComments(activity, 2, 3);
+    assertEquals(3, got.size());
+    assertEquals("comment 2", got.get(0).getTitle());
+    assertEquals("comment 5", got.get(2).getTitle());
+  }
+  
   public void testMentionersAndCommenters() throws Exception {
     ExoSocialActivity activity = new ExoSocialActivityImpl();
     activity.setTitle("hello @demo @john");
@@ -185,8 +373,62 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     assertEquals(2, got.getReplyToId().length);
     assertEquals(2, got.getCommentedIds().length);
     assertEquals(2, got.getMentionedIds().length);
+    assertEquals(2, mongoStorage.getNumberOfComments(got));
   }
   
+  public void testCommentLikeAndMentionOnSameActivity() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("hello @root @demo");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    tearDownActivityList.add(activity);
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(rootIdentity));
+
+    for (int i = 0; i < 2; i++) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment " + i);
+      comment.setUserId(demoIdentity.getId());
+      mongoStorage.saveComment(activity, comment);
+    }
+    activity.setLikeIdentityIds(new String[] {demoIdentity.getId()});
+    mongoStorage.updateActivity(activity);
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(1, mongoStorage.getActivityFeed(demoIdentity, 0, 10).size());
+
+    //demo still commented the activity
+    activity.setLikeIdentityIds(new String[] {});
+    mongoStorage.updateActivity(activity);
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+
+    //mary only liked it
+    activity.setLikeIdentityIds(new String[] {maryIdentity.getId()});
+    mongoStorage.updateActivity(activity);
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(maryIdentity));
+    activity.setLikeIdentityIds(new String[] {});
+    mongoStorage.updateActivity(activity);
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(maryIdentity));
+  }
+
+  public void testMentionInComment() throws Exception {
+    ExoSocialActivity activity = new ExoSocialActivityImpl();
+    activity.setTitle("hello @demo");
+    mongoStorage.saveActivity(rootIdentity, activity);
+    tearDownActivityList.add(activity);
+
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("hello @demo @john @mary");
+    comment.setUserId(rootIdentity.getId());
+    mongoStorage.saveComment(activity, comment);
+
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(johnIdentity));
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(maryIdentity));
+
+    mongoStorage.deleteComment(activity.getId(), comment.getId());
+    assertEquals(1, mongoStorage.getNumberOfActivitesOnActivityFeed(demoIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(johnIdentity));
+    assertEquals(0, mongoStorage.getNumberOfActivitesOnActivityFeed(maryIdentity));
+  }
+
   public void testGetNewerOnActivityFeed() {
     createActivities(3, demoIdentity);
     ExoSocialActivity demoBaseActivity = mongoStorage.getActivityFeed(demoIdentity, 0, 10).get(0);
@@ -231,6 +473,118 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     relationshipManager.delete(maryDemoConnection);
   }
   
+  public void testGetActivityFeedOrder() throws Exception {
+    createActivities(5, demoIdentity);
+
+    List<ExoSocialActivity> demoActivityFeed = mongoStorage.getActivityFeed(demoIdentity, 0, 10);
+    assertEquals(5, demoActivityFeed.size());
+    //newest first
+    for (int i = 1; i < demoActivityFeed.size(); i++) {
+      assertTrue(demoActivityFeed.get(i - 1).getUpdated().getTime() >= demoActivityFeed.get(i).getUpdated().getTime());
+    }
+    //
+    assertEquals(2, mongoStorage.getActivityFeed(demoIdentity, 2, 2).size());
+    assertEquals(1, mongoStorage.getActivityFeed(demoIdentity, 4, 2).size());
+  }
+
+  public void testGetActivityFeedPage() throws Exception {
+    createActivities(5, demoIdentity);
+
+    Set<String> activityIds = new HashSet<String>();
+    ActivityPage page = mongoStorage.getActivityFeedPage(demoIdentity, null, 2);
+    assertEquals(2, page.getActivities().size());
+    assertTrue(page.hasNext());
+    for (ExoSocialActivity activity : page.getActivities()) {
+      activityIds.add(activity.getId());
+    }
+    //
+    page = mongoStorage.getActivityFeedPage(demoIdentity, page.getNextCursor(), 2);
+    assertEquals(2, page.getActivities().size());
+    for (ExoSocialActivity activity : page.getActivities()) {
+      activityIds.add(activity.getId());
+    }
+    //
+    page = mongoStorage.getActivityFeedPage(demoIdentity, page.getNextCursor(), 2);
+    assertEquals(1, page.getActivities().size());
+    assertFalse(page.hasNext());
+    activityIds.add(page.getActivities().get(0).getId());
+    //no activity skipped or repeated
+    assertEquals(5, activityIds.size());
+  }
+
+  public void testGetActivityFeedPageAfterComment() throws Exception {
+    createActivities(5, demoIdentity);
+    //the oldest activity goes up to the top of the stream with all its stream items
+    ExoSocialActivity oldest = tearDownActivityList.get(0);
+    ExoSocialActivity comment = new ExoSocialActivityImpl();
+    comment.setTitle("comment on the oldest");
+    comment.setUserId(johnIdentity.getId());
+    mongoStorage.saveComment(mongoStorage.getActivity(oldest.getId()), comment);
+
+    List<String> activityIds = new ArrayList<String>();
+    String cursor = null;
+    do {
+      ActivityPage page = mongoStorage.getActivityFeedPage(demoIdentity, cursor, 2);
+      for (ExoSocialActivity activity : page.getActivities()) {
+        activityIds.add(activity.getId());
+      }
+      cursor = page.getNextCursor();
+    } while (cursor != null);
+    assertEquals(oldest.getId(), activityIds.get(0));
+    //no activity skipped or repeated
+    assertEquals(5, activityIds.size());
+    assertEquals(5, new HashSet<String>(activityIds).size());
+  }
+
+  public void testGetActivityFeedPagesOfSeveralSources() throws Exception {
+    List<Relationship> relationships = new ArrayList<Relationship>();
+    relationships.add(relationshipManager.inviteToConnect(demoIdentity, maryIdentity));
+    relationshipManager.confirm(demoIdentity, maryIdentity);
+    relationships.add(relationshipManager.inviteToConnect(demoIdentity, johnIdentity));
+    relationshipManager.confirm(demoIdentity, johnIdentity);
+    //the activities of the connections mentioning demo are found by the viewer and the relationships
+    createActivities(4, demoIdentity);
+    createActivities(4, maryIdentity);
+    for (int i = 0; i < 4; i++) {
+      ExoSocialActivity activity = new ExoSocialActivityImpl();
+      activity.setTitle("activity for @demo " + i);
+      mongoStorage.saveActivity(johnIdentity, activity);
+      tearDownActivityList.add(activity);
+    }
+    createActivities(3, johnIdentity);
+    //demo comments on some older activities of the connections, they go up with all their stream items
+    for (int i = 4; i < tearDownActivityList.size(); i += 3) {
+      ExoSocialActivity comment = new ExoSocialActivityImpl();
+      comment.setTitle("comment " + i);
+      comment.setUserId(demoIdentity.getId());
+      mongoStorage.saveComment(mongoStorage.getActivity(tearDownActivityList.get(i).getId()), comment);
+    }
+
+    List<String> expected = new ArrayList<String>();
+    for (ExoSocialActivity activity : mongoStorage.getActivityFeed(demoIdentity, 0, 100)) {
+      expected.add(activity.getId());
+    }
+    assertEquals(tearDownActivityList.size(), expected.size());
+    //every page is full up to the last one, no activity skipped or repeated
+    List<String> activityIds = new ArrayList<String>();
+    String cursor = null;
+    do {
+      ActivityPage page = mongoStorage.getActivityFeedPage(demoIdentity, cursor, 3);
+      cursor = page.getNextCursor();
+      if (cursor != null) {
+        assertEquals(3, page.getActivities().size());
+      }
+      for (ExoSocialActivity activity : page.getActivities()) {
+        activityIds.add(activity.getId());
+      }
+    } while (cursor != null);
+    assertEquals(expected, activityIds);
+    //
+    for (Relationship relationship : relationships) {
+      relationshipManager.delete(relationship);
+    }
+  }
+
   public void testGetNewerOnActivitiesOfConnections() throws Exception {
     List<Relationship> relationships = new ArrayList<Relationship> ();
     createActivities(3, maryIdentity);
@@ -536,6 +890,15 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     assertEquals(0, mongoStorage.getNumberOfOlderComments(activity, baseComment));
   }
   
+  /**
+   * Gets a collection of the mongo storage, named after the current repository.
+   */
+  private DBCollection getCollection(String name) throws Exception {
+    RepositoryService repositoryService = getService(RepositoryService.class);
+    String repositoryName = repositoryService.getCurrentRepository().getConfiguration().getName();
+    return getService(MongoStorage.class).getDB().getCollection(repositoryName + "." + name);
+  }
+  
   private void createActivities(int number, Identity owner) {
     for (int i = 0; i < number; i++) {
       ExoSocialActivity activity = new ExoSocialActivityImpl();
@@ -562,6 +925,8 @@ public class ActivityMongoStorageImplTestCase extends AbstractCoreTest {
     space.setManagers(managers);
     space.setMembers(members);
     spaceService.saveSpace(space, true);
+    //the space is saved without the space listeners
+    cacheService.removeAudience(demoIdentity.getId());
     return space;
   }
   
@@ -38,6 +38,7 @@ import org.exoplatform.services.log.Log;
 import org.exoplatform.services.organization.OrganizationService;
 import org.exoplatform.services.organization.User;
 import org.exoplatform.social.core.mongo.storage.MongoStorage;
+import org.exoplatform.social.core.mongo.storage.cache.MongoStorageCacheService;
 import org.exoplatform.social.core.space.SpaceException;
 import org.exoplatform.social.core.space.SpaceUtils;
 import org.exoplatform.social.core.space.model.Space;
@@ -60,18 +61,24 @@ public abstract class AbstractCoreTest extends BaseExoTestCase {
   protected SpaceService spaceService;
   protected Session session;
   private MongoStorage mongoStorage;
+  private MongoStorageCacheService cacheService;
   
   @Override
   protected void setUp() throws Exception {
     //
     begin();
     mongoStorage = (MongoStorage)  getContainer().getComponentInstanceOfType(MongoStorage.class);
+    cacheService = (MongoStorageCacheService) getContainer().getComponentInstanceOfType(MongoStorageCacheService.class);
     spaceService = (SpaceService) getContainer().getComponentInstanceOfType(SpaceService.class);
   }
 
   @Override
   protected void tearDown() throws Exception {
     mongoStorage.getDB().dropDatabase();
+    //indexes are gone with the database
+    mongoStorage.clearCollections();
+    //identities are created again by the next test
+    cacheService.clearCaches();
     //
     end();
   }
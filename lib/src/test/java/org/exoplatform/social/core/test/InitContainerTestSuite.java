@@ -18,6 +18,11 @@ package org.exoplatform.social.core.test;
 
 import org.exoplatform.commons.testing.BaseExoContainerTestSuite;
 import org.exoplatform.commons.testing.ConfigTestCase;
+import org.exoplatform.social.core.mongo.storage.ActivityMongoStoragePushFeedTest;
+import org.exoplatform.social.core.mongo.storage.ActivityMongoStorageQueryPlanTest;
+import org.exoplatform.social.core.mongo.storage.MongoMigrationTest;
+import org.exoplatform.social.core.mongo.storage.StreamMergerTest;
+import org.exoplatform.social.core.mongo.storage.cache.MongoCacheInvalidationBusTest;
 import org.exoplatform.social.core.storage.impl.ActivityManagerTest;
 import org.exoplatform.social.core.storage.impl.ActivityMongoStorageImplTestCase;
 import org.exoplatform.social.core.storage.impl.SpaceActivityMongoDBPublisherTest;
@@ -28,7 +33,12 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   ActivityMongoStorageImplTestCase.class,
   ActivityManagerTest.class,
-  SpaceActivityMongoDBPublisherTest.class
+  SpaceActivityMongoDBPublisherTest.class,
+  ActivityMongoStorageQueryPlanTest.class,
+  ActivityMongoStoragePushFeedTest.class,
+  MongoMigrationTest.class,
+  StreamMergerTest.class,
+  MongoCacheInvalidationBusTest.class
   })
 @ConfigTestCase(AbstractCoreTest.class)
 public class InitContainerTestSuite extends BaseExoContainerTestSuite {